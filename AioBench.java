@@ -0,0 +1,90 @@
+//*****************************************************************************
+//**  File: AioBench.java
+//**
+//**  Description: Compares blocking raw reads with asynchronous ones
+//**    (SysLib.rawreadAsync) from a single thread. Reads a set of random
+//**    blocks, first with nothing else to do and then with some computing
+//**    per block, which the asynchronous version overlaps with the disk.
+//**    Completions are counted by a callback and the data is checked
+//**    against the blocking reads.
+//**
+//**    l AioBench [blocks] [workMillis]
+//*****************************************************************************
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class AioBench extends Thread {
+    private int blocks = 32;
+    private int workMillis = 20; // computing per block
+
+    private int callbacks = 0; // completions seen by the callback
+
+    public AioBench( ) {
+    }
+
+    public AioBench( String args[] ) {
+	blocks = Integer.parseInt( args[0] );
+	if ( args.length > 1 )
+	    workMillis = Integer.parseInt( args[1] );
+    }
+
+    public void run( ) {
+	int[] block = new int[blocks];
+	Random random = new Random( 42 );
+	for ( int i = 0; i < blocks; i++ )
+	    block[i] = random.nextInt( Kernel.NUM_BLOCKS );
+	byte[][] plainData = new byte[blocks][Disk.blockSize];
+	byte[][] asyncData = new byte[blocks][Disk.blockSize];
+	AsyncIo[] io = new AsyncIo[blocks];
+	AsyncIo.Callback counter = new AsyncIo.Callback( ) {
+		public void completed( AsyncIo done ) {
+		    synchronized ( AioBench.this ) {
+			callbacks++;
+		    }
+		}
+	    };
+
+	for ( int work = 0; work <= workMillis; work += workMillis ) {
+	    long start = System.nanoTime( );
+	    for ( int i = 0; i < blocks; i++ ) {
+		SysLib.rawread( block[i], plainData[i] );
+		compute( work );
+	    }
+	    long plain = System.nanoTime( ) - start;
+
+	    start = System.nanoTime( );
+	    for ( int i = 0; i < blocks; i++ ) {
+		io[i] = SysLib.rawreadAsync( block[i], asyncData[i] );
+		io[i].onComplete( counter );
+	    }
+	    int errors = 0;
+	    for ( int i = 0; i < blocks; i++ ) {
+		if ( SysLib.aiowait( io[i] ) != 0 ||
+		     !Arrays.equals( plainData[i], asyncData[i] ) )
+		    errors++;
+		compute( work );
+	    }
+	    long async = System.nanoTime( ) - start;
+
+	    SysLib.cout( String.format( "%d blocks, %d ms work each: %d ms " +
+					"blocking, %d ms async%s\n", blocks,
+					work, plain / 1000000, async / 1000000,
+					errors == 0 ? "" :
+					" (" + errors + " errors)" ) );
+	    if ( workMillis == 0 )
+		break;
+	}
+	synchronized ( this ) {
+	    SysLib.cout( "AioBench: " + callbacks + " callbacks\n" );
+	}
+	SysLib.exit( );
+    }
+
+    // Busy for about ms milliseconds, passing safepoints
+    private static void compute( int ms ) {
+	long end = System.nanoTime( ) + ms * 1000000L;
+	while ( System.nanoTime( ) < end )
+	    SysLib.safepoint( );
+    }
+}
@@ -0,0 +1,106 @@
+// The handle of an asynchronous read, write or raw read (see
+// SysLib.readAsync, SysLib.writeAsync and SysLib.rawreadAsync). The
+// kernel's I/O thread (IoDaemon) runs the operation in the background
+// while the program goes on; the program can poll isDone( ), block in
+// SysLib.aiowait( ), or attach a Callback. The result is what the plain
+// call would have returned.
+import java.util.concurrent.locks.*;
+
+public class AsyncIo
+{
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int RAWREAD = 3;
+
+    // Called on the kernel's I/O thread when the operation completes, or
+    // right away by onComplete( ) if it already has. It runs outside
+    // threadOS, so it must be short and must not make system calls.
+    public interface Callback {
+	void completed( AsyncIo io );
+    }
+
+    final int op;
+    final FileTableEntry ftEnt; // READ and WRITE
+    final int block;            // RAWREAD
+    final byte[] buffer;
+    private boolean done = false;
+    private int result = Kernel.ERROR;
+    private Callback callback = null;
+    private final ReentrantLock lock = new ReentrantLock( );
+    private final Condition finished = lock.newCondition( );
+
+    AsyncIo( int op, FileTableEntry ftEnt, int block, byte buffer[] ) {
+	this.op = op;
+	this.ftEnt = ftEnt;
+	this.block = block;
+	this.buffer = buffer;
+    }
+
+    // A handle of a request that was refused, complete with ERROR
+    static AsyncIo failed( ) {
+	AsyncIo io = new AsyncIo( 0, null, -1, null );
+	io.done = true;
+	return io;
+    }
+
+    public boolean isDone( ) {
+	lock.lock( );
+	try {
+	    return done;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // The result once isDone( ), ERROR before
+    public int result( ) {
+	lock.lock( );
+	try {
+	    return result;
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Replaces any callback set before
+    public void onComplete( Callback c ) {
+	boolean now;
+	lock.lock( );
+	try {
+	    now = done;
+	    if ( !now )
+		callback = c;
+	} finally {
+	    lock.unlock( );
+	}
+	if ( now )
+	    c.completed( this );
+    }
+
+    // Called by the kernel to block until the operation completes
+    void await( ) {
+	lock.lock( );
+	try {
+	    while ( !done )
+		finished.awaitUninterruptibly( );
+	} finally {
+	    lock.unlock( );
+	}
+    }
+
+    // Called by the I/O thread with the result
+    void finish( int r ) {
+	Callback c;
+	lock.lock( );
+	try {
+	    result = r;
+	    done = true;
+	    c = callback;
+	    finished.signalAll( );
+	} finally {
+	    lock.unlock( );
+	}
+	if ( c != null )
+	    c.completed( this );
+    }
+}
@@ -7,7 +7,9 @@ public class Boot
 
     public static void main ( String args[] ) {
 	SysLib.cerr( "threadOS ver 1.0:\n" );
-	SysLib.boot( );
+	// e.g. java Boot sched=mlfq levels=4 quantum=1000 cpus=4
+	if ( SysLib.boot( args ) == ERROR )
+	    System.exit( 1 );
 	SysLib.cerr( "Type ? for help\n" );
 
 	String[] loader = new String[1];
@@ -0,0 +1,100 @@
+//*****************************************************************************
+//**  File: CallBench.java
+//**
+//**  Description: Measures how many times per second each of the common
+//**    file system calls can be made on one open file, and how many bytes
+//**    of Java heap every call allocates (where the JVM can tell). Needs a
+//**    formatted disk. read and write move a few bytes at the top of the
+//**    file, so they also include the block I/O; open+close opens a second,
+//**    closed file for reading. Calls that reach the disk are made
+//**    diskCalls times, the others calls times.
+//**
+//**    l CallBench [calls] [diskCalls]
+//*****************************************************************************
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+public class CallBench extends Thread {
+    private static final int DEFAULT_CALLS = 1000000;
+    private static final int DEFAULT_DISK_CALLS = 50;
+    private static final String[] CALLS =
+	{ "open+close", "seek", "fsize", "read", "write" };
+    private static final boolean[] DISK = { true, false, false, true, true };
+
+    private int calls = DEFAULT_CALLS;
+    private int diskCalls = DEFAULT_DISK_CALLS;
+    private byte[] buffer = new byte[16];
+    private int fd;
+
+    public CallBench( ) {
+    }
+
+    public CallBench( String args[] ) {
+	calls = Integer.parseInt( args[0] );
+	if ( args.length > 1 )
+	    diskCalls = Integer.parseInt( args[1] );
+    }
+
+    public void run( ) {
+	// a reader must wait while the file is open for writing
+	SysLib.close( SysLib.open( "callbench.r", "w" ) );
+	fd = SysLib.open( "callbench", "w+" );
+	if ( fd < 0 || SysLib.write( fd, buffer ) != buffer.length ) {
+	    SysLib.cout( "CallBench: cannot open callbench (format first?)\n" );
+	    SysLib.exit( );
+	    return;
+	}
+
+	SysLib.cout( "call          calls/s   bytes/call\n" );
+	for ( int c = 0; c < CALLS.length; c++ ) {
+	    int n = DISK[c] ? diskCalls : calls;
+	    measure( c, n / 10 ); // warm up
+	    long before = allocated( );
+	    long start = System.nanoTime( );
+	    measure( c, n );
+	    long elapsed = System.nanoTime( ) - start;
+	    long after = allocated( );
+	    SysLib.cout( String.format( "%-10s %10d %12s\n", CALLS[c],
+					n * 1000000000L / Math.max( elapsed, 1 ),
+					before < 0 ? "-" : "" + ( after - before ) / n ) );
+	}
+	SysLib.close( fd );
+	SysLib.delete( "callbench" );
+	SysLib.delete( "callbench.r" );
+	SysLib.exit( );
+    }
+
+    private void measure( int call, int count ) {
+	for ( int i = 0; i < count; i++ ) {
+	    switch ( call ) {
+	    case 0:
+		SysLib.close( SysLib.open( "callbench.r", "r" ) );
+		break;
+	    case 1:
+		SysLib.seek( fd, i & 15, 0 );
+		break;
+	    case 2:
+		SysLib.fsize( fd );
+		break;
+	    case 3:
+		SysLib.seek( fd, 0, 0 );
+		SysLib.read( fd, buffer );
+		break;
+	    case 4:
+		SysLib.seek( fd, 0, 0 );
+		SysLib.write( fd, buffer );
+		break;
+	    }
+	}
+    }
+
+    // Bytes this thread has allocated so far, or -1 if the JVM cannot say
+    private static long allocated( ) {
+	ThreadMXBean mx = ManagementFactory.getThreadMXBean( );
+	if ( !( mx instanceof com.sun.management.ThreadMXBean ) )
+	    return -1;
+	return ( ( com.sun.management.ThreadMXBean )mx )
+	    .getThreadAllocatedBytes( Thread.currentThread( ).getId( ) );
+    }
+}
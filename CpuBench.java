@@ -0,0 +1,80 @@
+//*****************************************************************************
+//**  File: CpuBench.java
+//**
+//**  Description: CPU-bound throughput test. Spawns a number of workers
+//**    that each crunch a fixed amount of work, passing a safepoint
+//**    (SysLib.safepoint( )) between chunks so the scheduler's CPU gate can
+//**    switch them, and reports the total time, the context switch
+//**    latency and the slices handed out. Boot with different cpus= and
+//**    latency= settings to see how throughput and quanta change.
+//**
+//**    l CpuBench [workers] [chunks]
+//*****************************************************************************
+
+public class CpuBench extends Thread {
+    private static final int CHUNK = 2000000; // loop iterations per chunk
+
+    private int workers = 4;
+    private int chunks = 50;
+    private boolean worker = false;
+
+    public CpuBench( ) {
+    }
+
+    public CpuBench( String args[] ) {
+	if ( args[0].equals( "worker" ) ) {
+	    worker = true;
+	    chunks = Integer.parseInt( args[1] );
+	    return;
+	}
+	workers = Integer.parseInt( args[0] );
+	if ( args.length > 1 )
+	    chunks = Integer.parseInt( args[1] );
+    }
+
+    public void run( ) {
+	if ( worker ) {
+	    long x = 0;
+	    for ( int c = 0; c < chunks; c++ ) {
+		for ( int i = 0; i < CHUNK; i++ )
+		    x = x * 31 + i;
+		SysLib.safepoint( ); // the scheduler may switch us out here
+	    }
+	    if ( x == 42 ) // keep the loop from being optimized away
+		SysLib.cout( "" );
+	    SysLib.exit( );
+	    return;
+	}
+
+	long start = System.currentTimeMillis( );
+	for ( int i = 0; i < workers; i++ ) {
+	    String[] args = { "CpuBench", "worker", "" + chunks };
+	    SysLib.exec( args );
+	}
+	for ( int i = 0; i < workers; i++ )
+	    SysLib.join( );
+	long elapsed = System.currentTimeMillis( ) - start;
+	SysLib.cout( "CpuBench: " + workers + " workers x " + chunks +
+		     " chunks in " + elapsed + " ms (" +
+		     ( workers * chunks * 1000L / Math.max( elapsed, 1 ) ) +
+		     " chunks/s)\n" );
+	long[] stats = new long[3];
+	SysLib.switchstats( stats );
+	SysLib.cout( "CpuBench: " + stats[0] + " switches, avg " +
+		     ( stats[1] / Math.max( stats[0], 1 ) / 1000 ) + " us, max " +
+		     ( stats[2] / 1000 ) + " us\n" );
+	long[] quanta = new long[4];
+	SysLib.quantumstats( quanta );
+	SysLib.cout( "CpuBench: " + quanta[0] + " slices, avg " +
+		     ( quanta[1] / Math.max( quanta[0], 1 ) ) + " ms, last " +
+		     quanta[2] + " ms for " + quanta[3] + " threads\n" );
+	// a missing or short buffer must fail, not throw in the kernel
+	if ( SysLib.switchstats( null ) != -1 ||
+	     SysLib.switchstats( new long[2] ) != -1 )
+	    SysLib.cout( "CpuBench: switchstats took a bad buffer\n" );
+	if ( SysLib.quantumstats( null ) != -1 ||
+	     SysLib.quantumstats( new long[3] ) != -1 )
+	    SysLib.cout( "CpuBench: quantumstats took a bad buffer\n" );
+	SysLib.exit( );
+    }
+}
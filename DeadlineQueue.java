@@ -0,0 +1,87 @@
+import java.util.*;
+
+// Earliest deadline first, ahead of a normal scheduling class. Deadline
+// threads (TCB.setDeadline) get up to budget ms of CPU in every period,
+// and while one of them has a job and budget left it runs before any
+// thread of the normal class; among them the earliest deadline goes
+// first. A thread that used up its budget waits for its next period.
+// Admission control is in Scheduler.setDeadline.
+public class DeadlineQueue extends RunQueue
+{
+    private RunQueue normal;
+    private ArrayList<TCB> deadlines = new ArrayList<TCB>( );
+
+    public DeadlineQueue( RunQueue normal ) {
+	super( normal.timeSlice );
+	this.normal = normal;
+    }
+
+    public synchronized void enqueue( TCB tcb ) {
+	if ( tcb.isRealTime( ) )
+	    deadlines.add( tcb );
+	else
+	    normal.enqueue( tcb );
+    }
+
+    public synchronized void requeue( TCB tcb, boolean preempted ) {
+	if ( tcb.isRealTime( ) )
+	    deadlines.add( tcb );
+	else
+	    normal.requeue( tcb, preempted );
+    }
+
+    public synchronized TCB dequeue( ) {
+	int i = earliest( System.currentTimeMillis( ) );
+	return ( i >= 0 ) ? deadlines.remove( i ) : normal.dequeue( );
+    }
+
+    // the index of the eligible deadline thread due first, or -1
+    private int earliest( long now ) {
+	int best = -1;
+	for ( int i = 0; i < deadlines.size( ); i++ ) {
+	    TCB tcb = deadlines.get( i );
+	    if ( tcb.isEligible( now ) && ( best < 0 || tcb.getDeadline( ) <
+					    deadlines.get( best ).getDeadline( ) ) )
+		best = i;
+	}
+	return best;
+    }
+
+    // a deadline thread runs until its budget is gone
+    public int quantum( TCB tcb ) {
+	if ( !tcb.isRealTime( ) )
+	    return normal.quantum( tcb );
+	long left = tcb.getBudgetLeft( ) / 1000000;
+	return ( int )Math.max( 1, Math.min( left, timeSlice ) );
+    }
+
+    public synchronized int size( ) {
+	return deadlines.size( ) + normal.size( );
+    }
+
+    // deadline threads are pinned to the CPU that admitted them
+    public TCB steal( int cpu ) {
+	return normal.steal( cpu );
+    }
+
+    // Whether a queued deadline thread should take the CPU from current
+    public synchronized boolean preempts( TCB current ) {
+	int i = earliest( System.currentTimeMillis( ) );
+	return i >= 0 && ( !current.isRealTime( ) ||
+			   deadlines.get( i ).getDeadline( ) < current.getDeadline( ) );
+    }
+
+    // Milliseconds until the next period of a deadline thread that is held
+    // back, or 0 if none is
+    public synchronized long holdTime( ) {
+	long now = System.currentTimeMillis( );
+	long hold = 0;
+	for ( TCB tcb : deadlines ) {
+	    if ( !tcb.isEligible( now ) ) {
+		long next = Math.max( tcb.getDeadline( ) - now, 1 );
+		hold = ( hold == 0 ) ? next : Math.min( hold, next );
+	    }
+	}
+	return hold;
+    }
+}
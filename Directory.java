@@ -8,11 +8,16 @@
 //------------------------------------------------------------------------------
 import java.lang.Exception;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Directory
 {
 	private static int maxChars = 30; // max characters of each file name
 
+	// Held by the FileTable and FileSystem while they look names up and
+	// change them, which may include writing an Inode out
+	private final ReentrantLock lock = new ReentrantLock();
+
 	// Directory entries
 	private int fsizes[];        // each element stores a different file size.
 	private char fnames[][];    // each element stores a different file name.
@@ -31,6 +36,16 @@ public class Directory
 		root.getChars( 0, fsizes[0], fnames[0], 0 ); // fnames[0] includes "/"
 	}
 
+	public void lock()
+	{
+		lock.lock();
+	}
+
+	public void unlock()
+	{
+		lock.unlock();
+	}
+
 //------------------------------------------------------------------------------
 // Assumes data[] received directory information from disk, and initializes the
 // Directory instance with this data[].
@@ -101,6 +101,11 @@ public class Disk extends Thread {
 	    return false;
     }
 
+    // The block the head is over
+    public synchronized int getHead( ) {
+	return currentBlockId;
+    }
+
     private synchronized void waitCommand( ) {
 	while ( command == IDLE ) {
 	    try {
@@ -0,0 +1,66 @@
+//*****************************************************************************
+//**  File: ExecBench.java
+//**
+//**  Description: Exec throughput test. Runs a program (HelloWorld by
+//**    default) the given number of times, one exec and join after the
+//**    other, and reports execs per second along with the time spent in
+//**    the exec call itself. The first exec is timed on its own since it
+//**    includes loading the program.
+//**
+//**    l ExecBench [count] [program ...]
+//**      e.g. l ExecBench 1000 HelloWorld
+//*****************************************************************************
+
+public class ExecBench extends Thread {
+    private int count = 1000;
+    private String[] program = { "HelloWorld" };
+    private long execNanos = 0; // time spent in SysLib.exec
+
+    public ExecBench( ) {
+    }
+
+    public ExecBench( String args[] ) {
+	count = Integer.parseInt( args[0] );
+	if ( args.length > 1 ) {
+	    program = new String[ args.length - 1 ];
+	    for ( int i = 1; i < args.length; i++ )
+		program[i - 1] = args[i];
+	}
+    }
+
+    public void run( ) {
+	long start = System.nanoTime( );
+	if ( !spawn( ) ) {
+	    SysLib.exit( );
+	    return;
+	}
+	long first = System.nanoTime( ) - start;
+
+	execNanos = 0;
+	start = System.nanoTime( );
+	for ( int i = 1; i < count; i++ )
+	    if ( !spawn( ) )
+		break;
+	long elapsed = System.nanoTime( ) - start;
+
+	SysLib.cout( "ExecBench: first exec " + first / 1000 + " us, then " +
+		     ( count - 1 ) + " execs in " + elapsed / 1000000 + " ms (" +
+		     ( count - 1 ) * 1000000000L / Math.max( elapsed, 1 ) +
+		     " execs/s), " + execNanos / Math.max( count - 1, 1 ) / 1000 +
+		     " us per exec call\n" );
+	SysLib.exit( );
+    }
+
+    // exec the program and wait for it
+    private boolean spawn( ) {
+	long start = System.nanoTime( );
+	int tid = SysLib.exec( program );
+	execNanos += System.nanoTime( ) - start;
+	if ( tid < 0 ) {
+	    SysLib.cout( "ExecBench: cannot exec " + program[0] + "\n" );
+	    return false;
+	}
+	SysLib.join( );
+	return true;
+    }
+}
@@ -0,0 +1,80 @@
+//*****************************************************************************
+//**  File: FdBench.java
+//**
+//**  Description: Descriptor table test. Opens a file the given number of
+//**    times (or as often as the descriptor table allows) and reports the
+//**    opens per second, then times spawning and joining children that
+//**    exit at once while all of those files are open, then dups and
+//**    closes one of them over and over. Needs a formatted disk.
+//**
+//**    l FdBench [fds] [spawns]
+//**      e.g. l FdBench 5000 200
+//*****************************************************************************
+
+public class FdBench extends Thread {
+    private static final String FILE = "fdbench";
+    private static final int DUPS = 100000;
+
+    private int fds = 1000;
+    private int spawns = 200;
+    private boolean child = false;
+
+    public FdBench( ) {
+    }
+
+    public FdBench( String args[] ) {
+	if ( args[0].equals( "child" ) ) {
+	    child = true;
+	    return;
+	}
+	fds = Integer.parseInt( args[0] );
+	if ( args.length > 1 )
+	    spawns = Integer.parseInt( args[1] );
+    }
+
+    public void run( ) {
+	if ( child ) {
+	    SysLib.exit( );
+	    return;
+	}
+
+	SysLib.close( SysLib.open( FILE, "w" ) );
+	int opened = 0;
+	long start = System.nanoTime( );
+	while ( opened < fds && SysLib.open( FILE, "r" ) >= 0 )
+	    opened++;
+	long elapsed = System.nanoTime( ) - start;
+	SysLib.cout( "FdBench: " + opened + " fds open, " +
+		     opened * 1000000000L / Math.max( elapsed, 1 ) +
+		     " opens/s\n" );
+
+	String[] args = { "FdBench", "child" };
+	start = System.nanoTime( );
+	for ( int i = 0; i < spawns; i++ ) {
+	    if ( SysLib.exec( args ) < 0 )
+		break;
+	    SysLib.join( );
+	}
+	elapsed = System.nanoTime( ) - start;
+	SysLib.cout( "FdBench: " + spawns + " spawns with them open: " +
+		     elapsed / Math.max( spawns, 1 ) / 1000 + " us each\n" );
+
+	int dups = 0;
+	start = System.nanoTime( );
+	for ( int i = 0; i < DUPS; i++ ) {
+	    int fd = SysLib.dup( 3 );
+	    if ( fd < 0 )
+		break;
+	    SysLib.close( fd );
+	    dups++;
+	}
+	elapsed = System.nanoTime( ) - start;
+	SysLib.cout( "FdBench: " + dups * 1000000000L / Math.max( elapsed, 1 ) +
+		     " dup/close pairs/s\n" );
+
+	for ( int fd = 3; fd < 3 + opened; fd++ )
+	    SysLib.close( fd );
+	SysLib.delete( FILE );
+	SysLib.exit( );
+    }
+}
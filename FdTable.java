@@ -0,0 +1,173 @@
+import java.util.Arrays;
+
+// The file descriptors of a thread: its FileTableEntries indexed by fd,
+// 0-2 being the standard streams. The table starts small and doubles as
+// needed up to MAX_FDS; a bitmap of the fds in use finds the lowest free
+// one a word at a time instead of an entry at a time.
+//
+// A spawned thread shares its parent's table copy-on-write: spawning
+// costs the same whatever the parent has open, and whichever of the two
+// first opens, closes or dups gets a copy of its own. A table holds one
+// reference (FileTableEntry.count) per fd however many threads share it,
+// and a copy takes its own.
+public class FdTable {
+    public final static int FIRST_FD = 3;     // 0-2: standard streams
+    public final static int MAX_FDS = 65536;
+    private final static int INITIAL_FDS = 64; // a multiple of 64
+
+    private static class Table {
+	FileTableEntry entries[];
+	long used[];      // bit fd % 64 of word fd / 64: entries[fd] in use
+	int free = 0;     // no free fd in words below this one
+	int users = 1;    // FdTables sharing this one, under its lock
+
+	Table( int size ) {
+	    entries = new FileTableEntry[size];
+	    used = new long[size / 64];
+	    used[0] = ( 1L << FIRST_FD ) - 1; // the standard streams
+	}
+
+	Table( Table from ) {
+	    entries = from.entries.clone( );
+	    used = from.used.clone( );
+	    free = from.free;
+	}
+
+	void set( int fd, FileTableEntry entry ) {
+	    entries[fd] = entry;
+	    if ( entry != null )
+		used[fd >> 6] |= 1L << fd;
+	    else {
+		used[fd >> 6] &= ~( 1L << fd );
+		free = Math.min( free, fd >> 6 );
+	    }
+	}
+
+	// The lowest free fd, which is entries.length if the table is full
+	int lowestFree( ) {
+	    for ( ; free < used.length; free++ )
+		if ( used[free] != -1L )
+		    return ( free << 6 ) +
+			Long.numberOfTrailingZeros( ~used[free] );
+	    return entries.length;
+	}
+
+	// Make room for fd
+	void grow( int fd ) {
+	    int size = entries.length;
+	    while ( size <= fd )
+		size *= 2;
+	    entries = Arrays.copyOf( entries, size );
+	    used = Arrays.copyOf( used, size / 64 );
+	}
+    }
+
+    private Table table; // null until the first fd is set
+
+    public FdTable( ) {
+    }
+
+    // A table sharing parent's fds until either one changes
+    public FdTable( FdTable parent ) {
+	synchronized ( parent ) {
+	    table = parent.table;
+	    if ( table != null )
+		synchronized ( table ) {
+		    table.users++;
+		}
+	}
+    }
+
+    public synchronized FileTableEntry get( int fd ) {
+	if ( table == null || fd < FIRST_FD || fd >= table.entries.length )
+	    return null;
+	return table.entries[fd];
+    }
+
+    // Put entry at the lowest free fd and return it, or -1 if entry is
+    // null or every fd is in use
+    public synchronized int add( FileTableEntry entry ) {
+	if ( entry == null )
+	    return -1;
+	own( );
+	int fd = table.lowestFree( );
+	if ( fd >= MAX_FDS )
+	    return -1;
+	if ( fd >= table.entries.length )
+	    table.grow( fd );
+	table.set( fd, entry );
+	return fd;
+    }
+
+    // Put entry at fd, which must be a valid fd, and return the entry it
+    // replaces, if any
+    public synchronized FileTableEntry set( int fd, FileTableEntry entry ) {
+	own( );
+	if ( fd >= table.entries.length )
+	    table.grow( fd );
+	FileTableEntry previous = table.entries[fd];
+	table.set( fd, entry );
+	return previous;
+    }
+
+    // Free fd and return its entry, or null if it was not in use
+    public synchronized FileTableEntry remove( int fd ) {
+	if ( get( fd ) == null )
+	    return null;
+	own( );
+	FileTableEntry entry = table.entries[fd];
+	table.set( fd, null );
+	return entry;
+    }
+
+    // Stop using the table, at exit. Returns the entries whose references
+    // are the caller's to drop: those of the table if this was its last
+    // user, or none if other threads still share it.
+    public synchronized FileTableEntry[] release( ) {
+	Table t = table;
+	table = null;
+	if ( t == null )
+	    return new FileTableEntry[0];
+	synchronized ( t ) {
+	    if ( --t.users > 0 )
+		return new FileTableEntry[0];
+	}
+	return t.entries;
+    }
+
+    public static boolean isValid( int fd ) {
+	return fd >= FIRST_FD && fd < MAX_FDS;
+    }
+
+    // Make the table this FdTable's alone before changing it
+    private void own( ) {
+	Table t = table;
+	if ( t == null ) {
+	    table = new Table( INITIAL_FDS );
+	    return;
+	}
+	synchronized ( t ) {
+	    if ( t.users == 1 )
+		return;
+	}
+
+	// Copy it with references of its own before letting go of it, so
+	// the last of the others to exit cannot close them meanwhile
+	Table mine = new Table( t );
+	for ( int fd = FIRST_FD; fd < mine.entries.length; fd++ )
+	    if ( mine.entries[fd] != null && !mine.entries[fd].retain( ) )
+		mine.set( fd, null );
+	synchronized ( t ) {
+	    if ( t.users > 1 ) {
+		t.users--;
+		table = mine;
+		return;
+	    }
+	}
+
+	// The others let go of t while it was copied: keep it after all
+	for ( int fd = FIRST_FD; fd < mine.entries.length; fd++ )
+	    if ( mine.entries[fd] != null )
+		mine.entries[fd].release( );
+    }
+}
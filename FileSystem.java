@@ -8,23 +8,30 @@ Description:
     will be called through SysLib. SysLib will call a Kernel interrupt
     which in turn will call a FileSystem method. All methods return -1
     or false upon error.
+    Every lock the file system holds across disk I/O or waits on, here
+    and in its classes, is a ReentrantLock rather than a monitor: under
+    threads=virtual a virtual thread that blocks inside a monitor pins
+    its carrier thread, and a few of them would stall all the others.
 Public Methods:
-	public FileSystem(int diskBlocks)
+	public FileSystem(int diskBlocks, Journal journal)
 		Initialized the file system. Will seach the DISK for a previous
 		iteration and load it in, otherwise will call format().
+		Metadata updates of every operation are logged into journal as
+		one atomic transaction.
 	boolean format(int files)
 		Parameters:
 			files: max number of files to allow on DISK
 		Restarts the file system and clears DISK of all files along wtih
 		all file system sub-classes.
 		Returns true on success.
-	FileTableEntry open(String fileName, String mode)
+	FileTableEntry open(String fileName, int mode)
 		Parameters:
 			fileName: name of file to open/create
-			mode: "r" for read only
-				  "w" for write only
-				  "w+" for read/write
-				  "a" for append
+			mode: FileTableEntry mode bits (see FileTableEntry.parseMode)
+				  READ for read only ("r")
+				  WRITE for write only ("w")
+				  READ | WRITE for read/write ("w+")
+				  WRITE | APPEND for append ("a")
 		Loads file into the FileTable and returns the FileTableEntry.
 		If file does not exist and mode is w/w+/a it will create a new
 		file.
@@ -63,52 +70,92 @@ Public Methods:
 			fileName: name of file to be deleted
 		Deletes a file specified by fileName.
 		Returns true on success.
+	boolean lock(FileTableEntry ftEnt, int offset, int length, int mode)
+		Parameters:
+			ftEnt: FileTableEntry of the file, which owns the lock
+			offset: first byte of the range
+			length: bytes in the range, 0 for all the rest of the file
+			mode: RangeLock.SHARED, EXCLUSIVE or UNLOCK, plus NOWAIT
+		Takes or releases an advisory byte-range lock, waiting (unless
+		NOWAIT) while other entries hold conflicting locks. Advisory
+		locks only conflict with each other, and go at close.
+		Returns true on success.
 	int fsize(FileTableEntry ftEnt)
 		Parameters:
 			ftEnt: FileTableEntry of the file
 		Returns the size of a specified file.
 	void sync()
-		Syncs superblock to disk.    
+		Syncs superblock to disk, commits the metadata journal and
+		checkpoints it so the DISK file needs no replay.
  */
 
 import java.lang.Exception;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FileSystem
 {
 	private SuperBlock superblock = null;
 	private Directory dir = null;
 	private FileTable filetable = null;
+	private Journal journal = null;
+
+	// writes of part of a data block read the rest of it first; these keep
+	// two of them from doing that to one block at once (block % LOCKS)
+	private final static int LOCKS = 16;
+	private final ReentrantLock[] dataLocks = new ReentrantLock[LOCKS];
+
+	//held by format, sync and the block freeing of delete
+	private final ReentrantLock lock = new ReentrantLock();
 
 	private final static int SEEK_SET = 0;
 	private final static int SEEK_CUR = 1;
 	private final static int SEEK_END = 2;
 
-	public FileSystem(int diskBlocks)
+	public FileSystem(int diskBlocks, Journal journal)
 	{
+		this.journal = journal;
+		for (int i = 0; i < LOCKS; i++)
+			dataLocks[i] = new ReentrantLock();
 		superblock = new SuperBlock();
 		if (superblock.formatCheck())
+		{
+			//format is an operation of its own, and its commit waits for
+			//every other one to end, so it must not run inside one
 			format(SuperBlock.DEFAULT_INODE_BLOCKS);
-		else
+			return;
+		}
+		journal.begin();
+		dir = new Directory(superblock.totalInodes);
+		filetable = new FileTable(dir);
+		FileTableEntry dirEnt = filetable.falloc("/", FileTableEntry.READ);
+		int dirSize = fsize(dirEnt);
+		if (dirSize > 0 )
 		{
-			dir = new Directory(superblock.totalInodes);
-			filetable = new FileTable(dir);
-			FileTableEntry dirEnt = filetable.falloc("/", "r");
-			int dirSize = fsize(dirEnt);
-			if (dirSize > 0 )
-			{
-				byte[] dirData = new byte[dirSize];
-				read(dirEnt, dirData);
-				dir.bytes2directory(dirData);
-			}			
+			byte[] dirData = new byte[dirSize];
+			read(dirEnt, dirData);
+			dir.bytes2directory(dirData);
 		}
-
+		endOp();
 	}
 
-	public synchronized boolean format(int files)
+	public boolean format(int files)
 	{
 		if (files <= 0)
 			return false;
+		lock.lock();
+		try
+		{
+			return reformat(files);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private boolean reformat(int files)
+	{
 		Inode inode = new Inode();
 		byte[] buffer = new byte[Disk.blockSize];
 		//update superblock
@@ -116,13 +163,16 @@ public class FileSystem
 		superblock.freeList = (int)Math.ceil(files / 
 						(double)(Disk.blockSize / inode.iNodeSize) + 1);
 		superblock.lastFreeBlock = superblock.totalBlocks - 1;
+		//format rewrites all metadata, so nothing in the journal survives
+		journal.reset();
+		journal.begin();
 		//write superblock to disk
 		superblock.sync();
 		//create new directory
 		dir = new Directory(files);
-		//create new filetable
-		if (filetable == null || !filetable.fempty())
-			filetable = new FileTable(dir);
+		//create new filetable, always: it must look names up in the new
+		//directory, not in the one format replaced
+		filetable = new FileTable(dir);
 		//insert new inodes
 		for (short i = 0; i < files; i++)
 			inode.toDisk(i);
@@ -136,196 +186,180 @@ public class FileSystem
 		SysLib.rawread(superblock.totalBlocks - 1, buffer);
 		SysLib.short2bytes(SuperBlock.NULL_PTR, buffer, 0);
 		SysLib.rawwrite(superblock.totalBlocks - 1, buffer);
+		journal.end();
+		//the free list above went straight to disk; commit the rest with it
+		journal.commit();
 		return true;
 	}
 
-	public synchronized FileTableEntry open(String fileName, String mode)
+	// open, close and delete take no FileSystem lock: the FileTable
+	// serializes them per file, and delete may wait for other threads to
+	// close the file
+	public FileTableEntry open(String fileName, int mode)
 	{
-		return filetable.falloc(fileName, mode);
+		journal.begin();
+		try
+		{
+			return filetable.falloc(fileName, mode);
+		}
+		finally
+		{
+			endOp();
+		}
 	}
 
-	public synchronized int read(FileTableEntry ftEnt, byte[] buffer)
+	// read and write hold the entry, whose seekPtr they move, and lock the
+	// bytes they touch in the Inode's ranges, so that calls on different
+	// parts of a file, through any of its entries, run at the same time
+	public int read(FileTableEntry ftEnt, byte[] buffer)
 	{
+		if (ftEnt == null || buffer == null ||
+			(ftEnt.mode & FileTableEntry.READ) == 0 || buffer.length == 0)
+			return -1;
+
+		ftEnt.lock.lock();
 		try
 		{
-			if (ftEnt.mode.equals("w") || ftEnt.mode.equals("a") 
-				|| buffer.length == 0)
-				return -1;
+			Inode inode = ftEnt.inode;
+			int start = ftEnt.seekPtr;
+			//bytes past the length may still be being written
+			int end = (int)Math.min((long)start + buffer.length, fsize(ftEnt));
+			if (end <= start)
+				return 0;
 
-			byte[] temp = new byte[Disk.blockSize];
-			byte[] indirectBlock = null;
-
-			if (ftEnt.inode.indirect > Inode.NULL_PTR)
+			inode.ranges.lock(ftEnt, start, end, false, true);
+			try
 			{
-				indirectBlock = new byte[Disk.blockSize];
-				SysLib.rawread(ftEnt.inode.indirect, indirectBlock);
-			}
-
-			//number of bytes to read into buffer
-			int totalBytes = Math.min(ftEnt.inode.length - ftEnt.seekPtr,
-										 buffer.length);
-			int bytesLeft = totalBytes;
-			//get block where seekPtr is
-			int relativeBlock = ftEnt.seekPtr / Disk.blockSize;
-			int block = getEntBlock(ftEnt);
-			int index = 0;
-			int currentBytes = 0;
-			int bytesRead = 0;
-			//read file into buffer
-			while(bytesLeft > 0)
-			{
-				if (block < 0)
+				byte[] temp = scratch(ftEnt);
+				int position = start;
+				//read file into buffer, a block at a time
+				while (position < end)
 				{
-					return -1;
-				}
-				SysLib.rawread(block, temp);
-				currentBytes = Math.min(bytesLeft, Disk.blockSize - 
-								(ftEnt.seekPtr % Disk.blockSize));
-				//read current block of data into buffer
-				for (int i = 0; i < currentBytes; i++)
-				{
-					buffer[index++] = temp[i + ftEnt.seekPtr % Disk.blockSize];
-				}
-				bytesRead += currentBytes;
-				ftEnt.seekPtr += currentBytes;
-				bytesLeft -= currentBytes;
-				//goto next block if more bytes to read
-				if(bytesLeft > 0)
-				{
-					if (++relativeBlock < Inode.directSize)
-					{
-						block = ftEnt.inode.direct[relativeBlock];
-					}
-					else if (indirectBlock != null)
-					{
-						block = (int)SysLib.bytes2short(indirectBlock,
-								(relativeBlock - Inode.directSize) * 2);
-					}
+					int block = inode.findBlock(position, null);
+					if (block < 0)
+						return -1;
+					int offset = position % Disk.blockSize;
+					int bytes = Math.min(end - position,
+										 Disk.blockSize - offset);
+					SysLib.rawread(block, temp);
+					System.arraycopy(temp, offset, buffer, position - start,
+									 bytes);
+					position += bytes;
 				}
+				ftEnt.seekPtr = end;
+				return end - start;
+			}
+			finally
+			{
+				inode.ranges.unlock(ftEnt, start, end);
 			}
-			return bytesRead;
-
 		}
-		catch(Exception e)
+		finally
 		{
-			SysLib.cerr(e.toString());
-			return -1;
+			ftEnt.lock.unlock();
 		}
-
-
 	}
-	public synchronized int write(FileTableEntry ftEnt, byte[] buffer)
+
+	public int write(FileTableEntry ftEnt, byte[] buffer)
 	{
+		if (ftEnt == null || buffer == null ||
+			(ftEnt.mode & FileTableEntry.WRITE) == 0 || buffer.length == 0)
+			return -1;
+
+		ftEnt.lock.lock();
 		try
 		{
-			if (ftEnt.mode.equals("r") || buffer.length == 0)
+			Inode inode = ftEnt.inode;
+			int start = ftEnt.seekPtr;
+			int end = start + buffer.length;
+			if (end < 0)
 				return -1;
 
-			byte[] temp = new byte[Disk.blockSize];
-			byte[] indirectBlock = null;
-
-			//check if file has a data block
-			if (ftEnt.inode.direct[0] == -1)
-			{
-				ftEnt.inode.direct[0] = (short)superblock.getFreeBlock();
-			}
-			//number of bytes to read into buffer
-			int bytesLeft = buffer.length;
-			//bytes to append to file
-			int extraBytes = Math.max(bytesLeft + ftEnt.seekPtr - 
-										ftEnt.inode.length, 0);
-			//seekPtr relative block in file
-			int relativeBlock = ftEnt.seekPtr / Disk.blockSize;
-			//check if indirect block is needed
-			int blocksToAlloc = (extraBytes + (ftEnt.seekPtr % Disk.blockSize)) 
-								/ Disk.blockSize;
-
-			if (blocksToAlloc + relativeBlock > Inode.directSize)
+			inode.ranges.lock(ftEnt, start, end, true, true);
+			journal.begin();
+			try
 			{
-				indirectBlock = new byte[Disk.blockSize];
-				if (ftEnt.inode.indirect == Inode.NULL_PTR)
+				byte[] temp = scratch(ftEnt);
+				//no other writer can be past the length while this one is
+				int length = fsize(ftEnt);
+				int position = start;
+				//write buffer to file, a block at a time, allocating blocks
+				while (position < end)
 				{
-					//if indirect not in use, allocate new block
-					ftEnt.inode.indirect = (short)superblock.getFreeBlock();
-					SysLib.rawread(ftEnt.inode.indirect, indirectBlock);
-					for (int i = 0; i < Disk.blockSize / 2; i += 2)
+					int block = inode.findBlock(position, superblock);
+					if (block < 0)
+						break;
+					int offset = position % Disk.blockSize;
+					int bytes = Math.min(end - position,
+										 Disk.blockSize - offset);
+					if (bytes == Disk.blockSize ||
+						(offset == 0 && position >= length))
 					{
-						SysLib.short2bytes(Inode.NULL_PTR, indirectBlock, i);
+						//nothing in the block to keep
+						System.arraycopy(buffer, position - start, temp,
+										 offset, bytes);
+						SysLib.rawwrite(block, temp);
 					}
-				}
-				else
-					SysLib.rawread(ftEnt.inode.indirect, indirectBlock);
-			}
-			int block = getEntBlock(ftEnt);
-			int nextBlock = -1;
-			int index = 0;
-			int currentBytes = 0;
-			int bytesWritten = 0;
-			//write buffer to file
-			while(bytesLeft > 0)
-			{
-				if (block < 0)
-				{
-					return -1;
-				}
-				SysLib.rawread(block, temp);
-				currentBytes = Math.min(bytesLeft, Disk.blockSize - 
-								(ftEnt.seekPtr % Disk.blockSize));
-				//write to current block
-				for (int i = 0; i < currentBytes; i++)
-				{
-					temp[i + ftEnt.seekPtr % Disk.blockSize] = buffer[index++];
-				}
-				bytesWritten += currentBytes;
-				ftEnt.seekPtr += currentBytes;
-				bytesLeft -= currentBytes;
-				//if more to write get next block
-				if(bytesLeft > 0 || ftEnt.seekPtr % Disk.blockSize == 0)
-				{
-					if (++relativeBlock < Inode.directSize)
+					else
 					{
-						nextBlock = ftEnt.inode.direct[relativeBlock];
-						if (nextBlock == Inode.NULL_PTR)
+						//keep the rest of the block, which other writers
+						//may be writing
+						dataLocks[block % LOCKS].lock();
+						try
 						{
-							nextBlock = superblock.getFreeBlock();
-							ftEnt.inode.direct[relativeBlock] = (short)nextBlock;
+							SysLib.rawread(block, temp);
+							System.arraycopy(buffer, position - start, temp,
+											 offset, bytes);
+							SysLib.rawwrite(block, temp);
 						}
-					}
-					else if (indirectBlock != null)
-					{
-						nextBlock = (int)SysLib.bytes2short(indirectBlock, 
-									(relativeBlock - Inode.directSize) * 2);
-						if (nextBlock == Inode.NULL_PTR)
+						finally
 						{
-							nextBlock = superblock.getFreeBlock();
-							SysLib.short2bytes((short)nextBlock, indirectBlock, 
-									(relativeBlock - Inode.directSize) * 2);
+							dataLocks[block % LOCKS].unlock();
 						}
 					}
+					position += bytes;
 				}
-				SysLib.rawwrite(block, temp);
-				block = nextBlock;
-			}
-
-			if (extraBytes > 0)
-				ftEnt.inode.length = ftEnt.seekPtr;
-			if (indirectBlock != null)
-				SysLib.rawwrite(ftEnt.inode.indirect, indirectBlock);
 
-			ftEnt.inode.toDisk(ftEnt.iNumber);
-			return bytesWritten;
+				//new blocks only ever go past the length, so the inode
+				//needs saving only if it grew (or a block ran out)
+				boolean grown = false;
+				inode.lock.lock();
+				try
+				{
+					if (position > inode.length)
+					{
+						inode.length = position;
+						grown = true;
+					}
+				}
+				finally
+				{
+					inode.lock.unlock();
+				}
+				if (grown || position < end)
+					inode.toDisk(ftEnt.iNumber);
+				ftEnt.seekPtr = position;
+				//out of blocks, or past the largest file
+				return (position == end) ? buffer.length : -1;
+			}
+			finally
+			{
+				inode.ranges.unlock(ftEnt, start, end);
+				endOp();
+			}
 		}
-		catch (Exception e)
+		finally
 		{
-			SysLib.cerr(e.toString());
-			return -1;
+			ftEnt.lock.unlock();
 		}
 	}
 
-	public synchronized int seek(FileTableEntry ftEnt, int offset, int whence)
+	public int seek(FileTableEntry ftEnt, int offset, int whence)
 	{
+		ftEnt.lock.lock();
 		try
 		{
+			int length = fsize(ftEnt);
 			switch(whence)
 			{
 				case SEEK_SET:
@@ -335,14 +369,14 @@ public class FileSystem
 					ftEnt.seekPtr += offset;
 					break;
 				case SEEK_END:
-					ftEnt.seekPtr = ftEnt.inode.length + offset;
+					ftEnt.seekPtr = length + offset;
 					break;
 				default:
 					return -1;
 			}
-			if (ftEnt.seekPtr > ftEnt.inode.length)
+			if (ftEnt.seekPtr > length)
 			{
-				ftEnt.seekPtr = ftEnt.inode.length;
+				ftEnt.seekPtr = length;
 			}
 			else if (ftEnt.seekPtr < 0)
 			{
@@ -350,65 +384,116 @@ public class FileSystem
 			}
 			return ftEnt.seekPtr;
 		}
-		catch(Exception e)
+		finally
 		{
-			return -1;
+			ftEnt.lock.unlock();
+		}
+	}
+
+	//advisory lock of [offset, offset + length) through ftEnt, to the end
+	//of the file and beyond if length is 0; mode is RangeLock.UNLOCK,
+	//SHARED or EXCLUSIVE, plus NOWAIT to fail rather than wait
+	public boolean lock(FileTableEntry ftEnt, int offset, int length, int mode)
+	{
+		if (offset < 0 || length < 0)
+			return false;
+		int end = offset + length;
+		if (length == 0 || end < 0)
+			end = RangeLock.EOF;
+		boolean wait = (mode & RangeLock.NOWAIT) == 0;
+		switch (mode & ~RangeLock.NOWAIT)
+		{
+			case RangeLock.UNLOCK:
+				ftEnt.inode.advisory.unlock(ftEnt, offset, end);
+				return true;
+			case RangeLock.SHARED:
+				return ftEnt.inode.advisory.lock(ftEnt, offset, end, false,
+												 wait);
+			case RangeLock.EXCLUSIVE:
+				return ftEnt.inode.advisory.lock(ftEnt, offset, end, true,
+												 wait);
+			default:
+				return false;
 		}
 	}
 
-	public synchronized boolean close(FileTableEntry ftEnt)
+	public boolean close(FileTableEntry ftEnt)
 	{
-		notifyAll();
+		//writes nothing to disk
 		return filetable.ffree(ftEnt);
 	}
 
-	public synchronized boolean delete(String fileName)
+	public boolean delete(String fileName)
 	{
 		try
 		{
 			//delete file from directory
-			short iNumber = dir.namei(fileName);
-			Inode inode = new Inode(iNumber);
-			while (inode.count > 0)
+			short iNumber;
+			dir.lock();
+			try
+			{
+				iNumber = dir.namei(fileName);
+			}
+			finally
 			{
-				wait();
+				dir.unlock();
 			}
-			if (!dir.ifree(iNumber))
+			if (iNumber < 0)
 				return false;
-			byte[] temp = new byte[Disk.blockSize];
-			if (inode.length > 0)
+			//wait until nobody has it open and keep it that way; fdelete
+			//checks again that fileName still names iNumber
+			Inode inode = filetable.fdelete(fileName, iNumber);
+			if (inode == null)
+				return false;
+			lock.lock();
+			try
 			{
-				for (int i = 0; i < Inode.directSize; i++)
-				{
-					if (inode.direct[i] > Inode.NULL_PTR)
-						superblock.returnBlock(inode.direct[i]);
-					inode.direct[i] = Inode.NULL_PTR;
-				}
-				if (inode.indirect != Inode.NULL_PTR)
+				journal.begin();
+				try
 				{
-					SysLib.rawread(inode.indirect, temp);
-					int offset = 0;
-					short blockNum = 0;
-					for (int i = 0; i < Disk.blockSize; i += 2)
+					byte[] temp = new byte[Disk.blockSize];
+					if (inode.length > 0)
 					{
-						blockNum = SysLib.bytes2short(temp, i);
-						if (blockNum > Inode.NULL_PTR)
+						for (int i = 0; i < Inode.directSize; i++)
 						{
-							superblock.returnBlock(blockNum);
+							if (inode.direct[i] > Inode.NULL_PTR)
+								superblock.returnBlock(inode.direct[i]);
+							inode.direct[i] = Inode.NULL_PTR;
+						}
+						if (inode.indirect != Inode.NULL_PTR)
+						{
+							SysLib.rawread(inode.indirect, temp);
+							int offset = 0;
+							short blockNum = 0;
+							for (int i = 0; i < Disk.blockSize; i += 2)
+							{
+								blockNum = SysLib.bytes2short(temp, i);
+								if (blockNum > Inode.NULL_PTR)
+								{
+									superblock.returnBlock(blockNum);
+								}
+								else
+									break;
+							}
+							superblock.returnBlock(inode.indirect);
 						}
-						else
-							break;
 					}
-					superblock.returnBlock(inode.indirect);
+					//clear out inode
+					inode.length = 0;
+					inode.count = 0;
+					inode.indirect = Inode.NULL_PTR;
+					//then the name, before anyone can reuse the inode
+					return filetable.funlink(iNumber, inode);
+				}
+				finally
+				{
+					endOp();
 				}
 			}
-			//clear out inode
-			inode.length = 0;
-			inode.count = 0;
-			inode.indirect = Inode.NULL_PTR;
-			inode.flag = 0;
-			inode.toDisk(iNumber);
-			return true;
+			finally
+			{
+				lock.unlock();
+			}
 		}
 		catch(Exception e)
 		{
@@ -417,28 +502,57 @@ public class FileSystem
 
 	}
 
-	public synchronized int fsize(FileTableEntry ftEnt)
+	public int fsize(FileTableEntry ftEnt)
 	{
-		return ftEnt.inode.length;
+		ftEnt.inode.lock.lock();
+		try
+		{
+			return ftEnt.inode.length;
+		}
+		finally
+		{
+			ftEnt.inode.lock.unlock();
+		}
 	}
 
-	public synchronized void sync()
+	//commit waits for the operations in progress to end, so none is
+	//committed half done
+	public void sync()
 	{
-		superblock.sync();
+		lock.lock();
+		try
+		{
+			journal.begin();
+			try
+			{
+				superblock.sync();
+			}
+			finally
+			{
+				journal.end();
+			}
+			journal.commit();
+			journal.checkpoint();
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
-	private int getEntBlock(FileTableEntry ftEnt)
+	//log the in-memory superblock if it changed and close the current
+	//journal operation
+	private void endOp()
 	{
-		//get relative block number
-		int block = ftEnt.seekPtr / Disk.blockSize;
-		//get actual block number
-		if (block < Inode.directSize)
-		{
-			return (int)ftEnt.inode.direct[block];
-		}
+		superblock.syncIfChanged();
+		journal.end();
+	}
 
-		byte[] temp = new byte[Disk.blockSize];
-		SysLib.rawread((int)ftEnt.inode.indirect, temp);
-		return (int)SysLib.bytes2short(temp, (block - Inode.directSize) * 2);
+	//the scratch block of ftEnt, whose lock the caller holds
+	private byte[] scratch(FileTableEntry ftEnt)
+	{
+		if (ftEnt.block == null)
+			ftEnt.block = new byte[Disk.blockSize];
+		return ftEnt.block;
 	}
 }
\ No newline at end of file
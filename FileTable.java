@@ -7,177 +7,338 @@
 //				are allocated via open and close methods named falloc and ffree,
 //				respectively. The FileSystem open and close methods are
 //				essentially wrappers around the FileTable methods.
+//
+//				There is no table-wide lock. The entries are kept in a
+//				concurrent identity set, names are looked up and created under
+//				the Directory's lock, and the open state of each Inode (its
+//				count and flag) is changed under a lock of its own.
+//
+//				All entries of an open file share one in-core Inode, so they
+//				see the same length and blocks. Any number of readers and
+//				writers may have a file open; their calls are kept apart by
+//				the byte ranges they lock (see RangeLock). Only a delete waits
+//				for the file to be closed.
+//
+//				The open state (count and flag) lives in the in-core Inode
+//				only, so opening and closing an existing file writes nothing
+//				to disk; Inodes are saved when their length or blocks change.
 //------------------------------------------------------------------------------
 import java.lang.Exception;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.*;
 
 public class FileTable
 {
-	private Vector<FileTableEntry> table;// the actual entity of this file table
-	private Directory dir;		         // the root directory 
+	// The lock of one iNumber; closed is signalled on the last close
+	private static class FileLock extends ReentrantLock
+	{
+		final Condition closed = newCondition();
+	}
+
+	private Set<FileTableEntry> table;	// the actual entity of this file table
+	private Directory dir;				// the root directory
+	private ConcurrentHashMap<Short, FileLock> inodeLocks; // per iNumber
+	private ConcurrentHashMap<Short, Inode> inodes;	// the open ones, in core
 
 //------------------------------------------------------------------------------
 // Default Constructor
 //------------------------------------------------------------------------------
 	public FileTable(Directory directory)
 	{
-		table = new Vector<FileTableEntry>(); // instantiate a file table
+		// instantiate a file table; entries are compared by identity
+		table = Collections.newSetFromMap(
+			new ConcurrentHashMap<FileTableEntry, Boolean>());
+		inodeLocks = new ConcurrentHashMap<Short, FileLock>();
+		inodes = new ConcurrentHashMap<Short, Inode>();
 		dir = directory;           // receive a reference to the Directory
 	}                              // from the file system
 
 //------------------------------------------------------------------------------
 // Allocates a new file (structure) table entry for the given filename.
 // Allocate/retrieve and register the corresponding Inode, increments the
-// Inode's count, immediately writes the Inode back to the disk, and returns
-// a reference to this file (structure) table entry.
+// Inode's count, and returns a reference to this file (structure) table
+// entry. Only a new Inode is written to disk. mode is made of the
+// FileTableEntry mode bits. Never waits for other openers.
 //------------------------------------------------------------------------------
-	public synchronized FileTableEntry falloc(String filename, String mode)
+	public FileTableEntry falloc(String filename, int mode)
 	{
+		if(mode <= 0 || (mode != FileTableEntry.READ &&
+			(mode & FileTableEntry.WRITE) == 0))
+		{
+			// Mode not supported.
+			return null;
+		}
+
 		short iNumber = -1;
 		Inode inode = null;
 
-		while(true)
+		dir.lock();
+		try
 		{
 			iNumber = filename.equals("/") ? 0 : dir.namei(filename);
 
-			if(iNumber >= 0)
+			if(iNumber < 0)
 			{
-				inode = new Inode(iNumber);
-
-				if(mode.equals("r"))
+				if((mode & FileTableEntry.WRITE) == 0)
 				{
-					if(inode.flag == Inode.UNUSED || 
-						inode.flag == Inode.READ)
-					{
-						inode.flag = Inode.READ;
-
-						// No need to wait.
-						break;
-					}
-					else if(inode.flag == Inode.WRITE)
-					{
-						try
-						{
-							// File is currently being written to, so we need
-							// to wait to be notified when the writing is done.
-							wait();
-						}
-						catch (InterruptedException e) {}
-					}
-					else if(inode.flag == Inode.DELETE)
-					{
-						// Can't read a file that's currently being deleted.
-						return null;
-					}
+					// Can't read a file that doesn't exist.
+					return null;
 				}
-				else if(mode.equals("w") || 
-					mode.equals("w+") || 
-					mode.equals("a"))
+
+				iNumber = dir.ialloc(filename);
+
+				if(iNumber == -1)
 				{
-					if(inode.flag == Inode.UNUSED)
-					{
-						inode.flag = Inode.WRITE;
+					// Can't create anymore files.
+					return null;
+				}
 
-						break;
-					}
-					else if(inode.flag == Inode.READ || 
-						inode.flag == Inode.WRITE)
-					{
-						try
-						{
-							// File is currently being read or written to, so
-							// we need to wait to be notified when the reading
-							// or writing is done.
-							wait();
-						}
-						catch(Exception e) {}
-					}
-					else if(inode.flag == Inode.DELETE)
-					{
-						// Can't write if the file is currently being deleted.
-						return null;
-					}
+				// Nobody else can find the new name before its Inode is
+				// written out below.
+				FileLock lock = lockOf(iNumber);
+				lock.lock();
+				try
+				{
+					inode = new Inode();
+					inode.toDisk(iNumber);
+					return register(inode, iNumber, mode);
 				}
-				else
+				finally
 				{
-					// Mode not supported.
-					return null;
+					lock.unlock();
 				}
 			}
-			else
+
+			// Take the file before letting go of the Directory, in the
+			// order funlink does, so the name cannot be unlinked and the
+			// iNumber reused in between.
+			FileLock lock = lockOf(iNumber);
+			lock.lock();
+			try
 			{
-				if(mode.equals("r"))
-				{
-					// Can't read a file that doesn't exist.
-					return null;
-				}
+				inode = inodes.get(iNumber);
 
-				inode = new Inode();
-				iNumber = dir.ialloc(filename);
+				if(inode == null)
+					inode = new Inode(iNumber);
 
-				if(iNumber == -1)
+				if(inode.flag == Inode.DELETE)
 				{
-					// Can't create anymore files.
+					// Can't open a file that's currently being deleted.
 					return null;
 				}
+
+				return register(inode, iNumber, mode);
+			}
+			finally
+			{
+				lock.unlock();
 			}
 		}
+		finally
+		{
+			dir.unlock();
+		}
+	}
+
+	// With the lock of iNumber held
+	private FileTableEntry register(Inode inode, short iNumber, int mode)
+	{
+		inode.lock.lock();
+		try
+		{
+			// WRITE while the file may have been written since it was opened.
+			if((mode & FileTableEntry.WRITE) != 0)
+				inode.flag = Inode.WRITE;
+			else if(inode.flag != Inode.WRITE)
+				inode.flag = Inode.READ;
 
-		inode.count++;
-		inode.toDisk(iNumber);
+			inode.count++;
+		}
+		finally
+		{
+			inode.lock.unlock();
+		}
+		inodes.put(iNumber, inode);
 
 		FileTableEntry entry = new FileTableEntry(inode, iNumber, mode);
 
-		table.addElement(entry);
+		table.add(entry);
 
 		return entry;
 	}
 
 //------------------------------------------------------------------------------
-// Receives a file table entry reference, saves the corresponding Inode to the
-// disk, and frees this file table entry. Returns true if this file table entry
+// Receives a file table entry reference and frees this file table entry,
+// and the in-core Inode with the last entry of the file. Returns true if this file table entry
 // found in the table. Fales otherwise, or if an error occurs.
 //------------------------------------------------------------------------------
-	public synchronized boolean ffree(FileTableEntry entry)
+	public boolean ffree(FileTableEntry entry)
 	{
-		if(entry == null)
+		if(entry == null || !table.contains(entry))
 			return false;
 
-		if(table.contains(entry))
+		FileLock lock = lockOf(entry.iNumber);
+		lock.lock();
+		try
 		{
-			// Remove a thread from the entry table.
-			entry.count--;
+			if(!table.contains(entry))
+				return false;	// freed by another thread meanwhile
 
-			// If the entry table no longer has any threads associated with it,
+			// Remove a reference from the entry table.
+			// If the entry table no longer has any fds referring to it,
 			// then we need to decrease the inode count as well.
-			if(entry.count == 0)
+			if(entry.release() == 0)
 			{
-				// If the file table entry is no longer being used by any
-				// thread, then we should decrease the amount of entries
-				// associated with the Inode.
-				entry.inode.count--;
+				Inode inode = entry.inode;
+				inode.advisory.unlockAll(entry);
 
-				if(entry.inode.count == 0)
-					entry.inode.flag = Inode.UNUSED;
+				inode.lock.lock();
+				try
+				{
+					inode.count--;
 
-				entry.inode.toDisk(entry.iNumber);
+					if(inode.count <= 0)
+					{
+						// Last close: the Inode leaves the core.
+						inode.count = 0;
+						inode.flag = Inode.UNUSED;
+						inodes.remove(entry.iNumber);
+					}
+				}
+				finally
+				{
+					inode.lock.unlock();
+				}
 
 				table.remove(entry);
-			}
 
-			notifyAll();
+				// Only a delete of this file can be waiting for it.
+				lock.closed.signalAll();
+			}
 
 			return true;
 		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Waits until the file iNumber, named filename, is not open, marks its Inode
+// as being deleted so that nobody can open it any more, and returns it. The
+// mark is kept in core until funlink. Returns null if the file is already
+// being deleted, or if filename no longer names iNumber.
+//------------------------------------------------------------------------------
+	public Inode fdelete(String filename, short iNumber)
+	{
+		FileLock lock = lockOf(iNumber);
+		while(true)
+		{
+			// The name is checked and the file marked under the Directory
+			// and the file, in the order of funlink and falloc.
+			dir.lock();
+			try
+			{
+				if(dir.namei(filename) != iNumber)
+					return null;
+
+				lock.lock();
+				try
+				{
+					Inode inode = inodes.get(iNumber);
+
+					if(inode == null)
+					{
+						inode = new Inode(iNumber);
+						inode.flag = Inode.DELETE;
+						inodes.put(iNumber, inode);
+						return inode;
+					}
 
-		return false;
+					if(inode.flag == Inode.DELETE)
+						return null;
+				}
+				finally
+				{
+					lock.unlock();
+				}
+			}
+			finally
+			{
+				dir.unlock();
+			}
+
+			// Wait for the last close without holding the Directory, which
+			// the threads that have the file open may need meanwhile.
+			lock.lock();
+			try
+			{
+				Inode inode = inodes.get(iNumber);
+
+				if(inode != null && inode.flag != Inode.DELETE)
+					lock.closed.awaitUninterruptibly();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Ends the delete of file iNumber: removes its name from the Directory,
+// saves its Inode, which the caller has cleared, and drops the mark of
+// fdelete. Holding the Directory and the file keeps a new file from taking
+// the iNumber before then. Returns false if the name was already gone.
+//------------------------------------------------------------------------------
+	public boolean funlink(short iNumber, Inode inode)
+	{
+		dir.lock();
+		try
+		{
+			FileLock lock = lockOf(iNumber);
+			lock.lock();
+			try
+			{
+				if(!dir.ifree(iNumber))
+					return false;
+
+				inode.toDisk(iNumber);
+				return true;
+			}
+			finally
+			{
+				inodes.remove(iNumber);
+				lock.unlock();
+			}
+		}
+		finally
+		{
+			dir.unlock();
+		}
 	}
 
 //------------------------------------------------------------------------------
 // Checks to see if the FileTable is empty.
 //------------------------------------------------------------------------------
-	public synchronized boolean fempty()
+	public boolean fempty()
 	{
-		return table.isEmpty( );  // return if table is empty 
+		return table.isEmpty( );  // return if table is empty
 	}                            // should be called before starting a format
+
+	// The lock that guards the open state of Inode iNumber
+	private FileLock lockOf(short iNumber)
+	{
+		FileLock lock = inodeLocks.get(iNumber);
+		if(lock == null)
+		{
+			FileLock fresh = new FileLock();
+			lock = inodeLocks.putIfAbsent(iNumber, fresh);
+			if(lock == null)
+				lock = fresh;
+		}
+		return lock;
+	}
 }
@@ -1,21 +1,67 @@
 import java.lang.Exception;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FileTableEntry
 {										// Each table entry should have
+	public final static int READ = 1;	// mode bits: may read,
+	public final static int WRITE = 2;	//    may write,
+	public final static int APPEND = 4;	//    starts at the end of the file
+
 	public int seekPtr;					//a file seek pointer
 	public final Inode inode;			//    a reference to its inode
 	public final short iNumber;			//    this inode number
-	public int count;					//    # threads sharing this entry
-	public final String mode;			//    "r", "w", "w+", or "a"
-	public FileTableEntry ( Inode i, short inumber, String m )
+	public int count;					//    # fds referring to this entry
+	public final int mode;				//    READ, WRITE, READ|WRITE or
+										//    WRITE|APPEND
+	byte[] block;						//    FileSystem scratch block,
+										//    used under this entry's lock
+	public final ReentrantLock lock =	//    held by read, write and seek,
+		new ReentrantLock();			//    across their disk I/O
+	public FileTableEntry ( Inode i, short inumber, int m )
 	{
 		seekPtr = 0;			// the seek pointer is set to the file top
 		inode = i;
 		iNumber = inumber;
 		count = 1;				// at least on thread is using this entry
 		mode = m;				// once access mode is set, it never changes
-		if ( mode.compareTo( "a" ) == 0 )	// if mode is append,
+		if ( ( mode & APPEND ) != 0 )		// if mode is append,
 			seekPtr = inode.length;			// seekPtr points to the end of file
 	}
+
+	// Takes another reference to this entry, for a new fd; false if its
+	// last one is gone already
+	public synchronized boolean retain( )
+	{
+		if ( count <= 0 )
+			return false;
+		count++;
+		return true;
+	}
+
+	// Drops a reference and returns how many are left
+	public synchronized int release( )
+	{
+		return --count;
+	}
+
+	// The mode bits of "r", "w", "w+" or "a", or -1 for any other string
+	public static int parseMode( String m )
+	{
+		if ( m == null )
+			return -1;
+		switch ( m )
+		{
+			case "r":
+				return READ;
+			case "w":
+				return WRITE;
+			case "w+":
+				return READ | WRITE;
+			case "a":
+				return WRITE | APPEND;
+			default:
+				return -1;
+		}
+	}
 }
\ No newline at end of file
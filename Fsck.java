@@ -0,0 +1,465 @@
+//------------------------------------------------------------------------------
+// File:		Fsck.java
+// Date:		10/19/2026
+// Description: File system consistency checker. Walks every Inode with its
+//				direct and indirect blocks, the free list and the directory
+//				entries, and reports:
+//
+//					- blocks referenced twice (by two Inodes, or by an Inode
+//					  and the free list)
+//					- leaked blocks (neither referenced nor free)
+//					- bad block pointers and bad directory names
+//					- orphan Inodes (owning blocks, but with no name)
+//
+//				Directory entry i always names Inode i, so a name cannot
+//				dangle; whether an Inode is in use is read off the directory
+//				(the open state of Inodes is never on disk). A file system
+//				whose directory was never saved has its names and orphans
+//				left unchecked.
+//
+//				Inode blocks and the data block map are scanned in parallel
+//				on a fork-join pool while the free list chain is walked.
+//
+//				Online, as a threadOS program ("l Fsck"), the file system is
+//				synced first, so the journal is checkpointed, and the image is
+//				then read through SysLib.rawread and only reported on, since
+//				the mounted file system keeps its own copy of the SuperBlock.
+//				If the journal has committed transactions again by the time
+//				the image is read, the check is refused as it is offline; the
+//				file system is busy and fsck has to be run again. Offline, as
+//				"java Fsck [-r] [DISK]", it reads the DISK file directly and
+//				with -r rebuilds the free list from the blocks no Inode owns.
+//				That repairs leaked blocks and blocks both free and owned;
+//				blocks owned by two Inodes, bad pointers, bad names and orphan
+//				Inodes are only reported, since there is no telling which file
+//				the data belongs to.
+//------------------------------------------------------------------------------
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Fsck extends Thread
+{
+	private final static int FREE = -2;        // owner of a free list block
+	private final static int UNOWNED = -1;     // owner of an unseen block
+	private final static int INODES_PER_TASK = 16;
+	private final static int BLOCKS_PER_TASK = 128;
+
+	private final static int maxChars = 30;    // must match Directory
+
+	private final boolean repair;
+	private final boolean standalone;
+
+	private byte[] image;                      // the whole file system
+	private int totalBlocks;
+	private int totalInodes;
+	private int freeList;
+	private int dataStart;                     // first block after the Inodes
+
+	private AtomicIntegerArray owner;          // block -> iNumber / FREE
+	private final List<String> problems =
+		Collections.synchronizedList(new ArrayList<String>());
+	private final AtomicInteger doubles = new AtomicInteger();
+	private final AtomicInteger unrepairable = new AtomicInteger();
+	private boolean[] ownsBlocks;              // iNumber -> has any pointer
+	private int leaked;
+	private int orphans;
+
+	public Fsck()
+	{
+		this(new String[0]);
+	}
+
+	public Fsck(String args[])
+	{
+		this(args, false);
+	}
+
+	private Fsck(String args[], boolean offline)
+	{
+		boolean r = false;
+		for (int i = 0; i < args.length; i++)
+			if (args[i].equals("-r"))
+				r = true;
+		repair = r && offline;
+		standalone = offline;
+	}
+
+//------------------------------------------------------------------------------
+// threadOS entry point: checkpoint the journal, snapshot the image through
+// the kernel, with the journal header and first descriptor block, and check
+// it.
+//------------------------------------------------------------------------------
+	public void run()
+	{
+		SysLib.sync();
+		int blocks = Kernel.NUM_BLOCKS + 2;
+		image = new byte[blocks * Disk.blockSize];
+		byte[] buffer = new byte[Disk.blockSize];
+		for (int i = 0; i < blocks; i++)
+		{
+			SysLib.rawread(i, buffer);
+			System.arraycopy(buffer, 0, image, i * Disk.blockSize,
+							 Disk.blockSize);
+		}
+		if (Journal.hasLiveTail(image, Kernel.NUM_BLOCKS))
+			print("fsck: the journal has committed transactions that are " +
+				  "not home yet; the file system is busy, run fsck again\n");
+		else
+			check();
+		SysLib.exit();
+	}
+
+//------------------------------------------------------------------------------
+// Standalone entry point: java Fsck [-r] [DISK]
+//------------------------------------------------------------------------------
+	public static void main(String args[])
+	{
+		String path = "DISK";
+		for (int i = 0; i < args.length; i++)
+			if (!args[i].startsWith("-"))
+				path = args[i];
+
+		Fsck fsck = new Fsck(args, true);
+		try
+		{
+			File file = new File(path);
+			fsck.image = new byte[(int)file.length()];
+			DataInputStream in = new DataInputStream(
+				new FileInputStream(file));
+			in.readFully(fsck.image);
+			in.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("fsck: " + e);
+			System.exit(2);
+		}
+
+		if (Journal.hasLiveTail(fsck.image, Kernel.NUM_BLOCKS))
+		{
+			System.err.println("fsck: " + path + " has committed journal " +
+							   "transactions; boot threadOS once to replay " +
+							   "them first");
+			System.exit(2);
+		}
+
+		int found = fsck.check();
+		if (found > 0 && fsck.repair)
+		{
+			fsck.rebuildFreeList();
+			try
+			{
+				FileOutputStream out = new FileOutputStream(path);
+				out.write(fsck.image);
+				out.close();
+			}
+			catch (IOException e)
+			{
+				System.err.println("fsck: " + e);
+				System.exit(2);
+			}
+			fsck.print("free list rebuilt\n");
+			if (fsck.unrepairable.get() > 0)
+				fsck.print("fsck: " + fsck.unrepairable.get() +
+						   " problem(s) not repaired\n");
+		}
+		System.exit(found > 0 && (!fsck.repair ||
+								  fsck.unrepairable.get() > 0) ? 1 : 0);
+	}
+
+//------------------------------------------------------------------------------
+// Runs every check over image and prints a report. Returns the number of
+// problems found.
+//------------------------------------------------------------------------------
+	private int check()
+	{
+		totalBlocks = SysLib.bytes2int(image, 0);
+		totalInodes = SysLib.bytes2int(image, 4);
+		freeList = SysLib.bytes2int(image, 8);
+		dataStart = (totalInodes + Inode.iNodesPerBlock - 1) /
+					Inode.iNodesPerBlock + 1;
+
+		if (totalBlocks != Kernel.NUM_BLOCKS || totalInodes <= 0 ||
+			dataStart >= totalBlocks ||
+			image.length < totalBlocks * Disk.blockSize)
+		{
+			print("fsck: no valid superblock, format required\n");
+			return 1;
+		}
+
+		ownsBlocks = new boolean[totalInodes];
+		owner = new AtomicIntegerArray(totalBlocks);
+		for (int i = 0; i < totalBlocks; i++)
+			owner.set(i, UNOWNED);
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try
+		{
+			// The free list is a chain, so it is walked by one task while the
+			// Inode table is split across the rest of the pool.
+			ForkJoinTask<?> free = pool.submit(new Runnable()
+			{
+				public void run()
+				{
+					walkFreeList();
+				}
+			});
+			pool.invoke(new InodeScan(0, totalInodes));
+			free.join();
+			leaked = pool.invoke(new LeakScan(dataStart, totalBlocks));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		checkDirectory();
+
+		for (String problem : problems)
+			print(problem + "\n");
+		print("fsck: " + totalInodes + " inodes, " + totalBlocks +
+			  " blocks, " + doubles.get() + " double-allocated, " +
+			  leaked + " leaked, " + orphans + " orphan(s), " + problems.size() +
+			  " problem(s)\n");
+		return problems.size();
+	}
+
+	private class InodeScan extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final int lo, hi;
+
+		InodeScan(int lo, int hi)
+		{
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute()
+		{
+			if (hi - lo <= INODES_PER_TASK)
+			{
+				for (int i = lo; i < hi; i++)
+					scanInode((short)i);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new InodeScan(lo, mid), new InodeScan(mid, hi));
+		}
+	}
+
+	private class LeakScan extends RecursiveTask<Integer>
+	{
+		private static final long serialVersionUID = 1L;
+		private final int lo, hi;
+
+		LeakScan(int lo, int hi)
+		{
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected Integer compute()
+		{
+			if (hi - lo <= BLOCKS_PER_TASK)
+			{
+				int count = 0;
+				for (int i = lo; i < hi; i++)
+				{
+					if (owner.get(i) == UNOWNED)
+					{
+						problems.add("block " + i + ": leaked");
+						count++;
+					}
+				}
+				return count;
+			}
+			int mid = (lo + hi) >>> 1;
+			LeakScan left = new LeakScan(lo, mid);
+			left.fork();
+			int right = new LeakScan(mid, hi).compute();
+			return left.join() + right;
+		}
+	}
+
+	private void scanInode(short iNumber)
+	{
+		int offset = Inode.getBlockNumber(iNumber) * Disk.blockSize +
+					 Inode.getBlockOffset(iNumber);
+		int length = SysLib.bytes2int(image, offset);
+		offset += 8;                           // past length, count, flag
+
+		for (int i = 0; i < Inode.directSize; i++, offset += 2)
+		{
+			short block = SysLib.bytes2short(image, offset);
+			if (block != Inode.NULL_PTR)
+			{
+				ownsBlocks[iNumber] = true;
+				claim(block, iNumber, "direct[" + i + "]");
+			}
+		}
+
+		short indirect = SysLib.bytes2short(image, offset);
+		if (indirect != Inode.NULL_PTR)
+			ownsBlocks[iNumber] = true;
+		if (indirect == Inode.NULL_PTR || !claim(indirect, iNumber, "indirect"))
+			return;
+
+		// FileSystem.write allocates one block past the end of the file when
+		// the length lands on a block boundary, so allow for it.
+		int blocks = (length + Disk.blockSize - 1) / Disk.blockSize + 1;
+		int entries = Math.min(blocks - Inode.directSize, Disk.blockSize / 2);
+		int base = indirect * Disk.blockSize;
+		for (int i = 0; i < entries; i++)
+		{
+			short block = SysLib.bytes2short(image, base + i * 2);
+			if (block == Inode.NULL_PTR)
+				break;
+			claim(block, iNumber, "indirect[" + i + "]");
+		}
+	}
+
+	private void walkFreeList()
+	{
+		int block = freeList;
+		int steps = 0;
+		while (block != SuperBlock.NULL_PTR)
+		{
+			if (block < dataStart || block >= totalBlocks)
+			{
+				problems.add("free list: bad pointer " + block);
+				return;
+			}
+			if (++steps > totalBlocks)
+			{
+				problems.add("free list: cycle at block " + block);
+				return;
+			}
+			if (!owner.compareAndSet(block, UNOWNED, FREE))
+			{
+				int prev = owner.get(block);
+				doubles.incrementAndGet();
+				problems.add("block " + block + ": on the free list but " +
+							 (prev == FREE ? "listed twice"
+										   : "owned by inode " + prev));
+				if (prev == FREE)
+					return;                    // the chain loops from here
+			}
+			block = SysLib.bytes2short(image, block * Disk.blockSize);
+		}
+	}
+
+	// Records iNumber as the owner of block. Returns false if the pointer
+	// itself is bad.
+	private boolean claim(int block, short iNumber, String where)
+	{
+		if (block < dataStart || block >= totalBlocks)
+		{
+			problems.add("inode " + iNumber + ": bad " + where + " pointer " +
+						 block);
+			unrepairable.incrementAndGet();
+			return false;
+		}
+		if (!owner.compareAndSet(block, UNOWNED, iNumber))
+		{
+			int prev = owner.get(block);
+			doubles.incrementAndGet();
+			if (prev != FREE)
+				unrepairable.incrementAndGet();
+			problems.add("block " + block + ": inode " + iNumber + " " +
+						 where + " also " + (prev == FREE ? "on the free list"
+						 : "owned by inode " + prev));
+		}
+		return true;
+	}
+
+	// The directory is the contents of Inode 0, laid out like
+	// Directory.directory2bytes: every file size, then every file name.
+	// Inode i is in use if and only if entry i has a name.
+	private void checkDirectory()
+	{
+		int offset = Inode.getBlockNumber((short)0) * Disk.blockSize;
+		int length = SysLib.bytes2int(image, offset);
+		int expected = totalInodes * (4 + maxChars * 2);
+		if (length == 0)
+		{
+			print("fsck: directory not saved on disk, names and orphans " +
+				  "not checked\n");
+			return;
+		}
+		if (length != expected)
+		{
+			problems.add("directory: size " + length + ", expected " +
+						 expected);
+			unrepairable.incrementAndGet();
+			return;
+		}
+
+		byte[] data = new byte[length];
+		int copied = 0;
+		short[] direct = new short[Inode.directSize];
+		for (int i = 0; i < Inode.directSize; i++)
+			direct[i] = SysLib.bytes2short(image, offset + 8 + i * 2);
+		for (int i = 0; i < Inode.directSize && copied < length; i++)
+		{
+			if (direct[i] < dataStart || direct[i] >= totalBlocks)
+				return;                        // already reported
+			int n = Math.min(Disk.blockSize, length - copied);
+			System.arraycopy(image, direct[i] * Disk.blockSize, data, copied, n);
+			copied += n;
+		}
+		if (copied < length)
+			return;
+
+		for (int i = 1; i < totalInodes; i++)
+		{
+			int size = SysLib.bytes2int(data, i * 4);
+			if (size < 0 || size > maxChars)
+			{
+				problems.add("directory: entry " + i + " has bad name " +
+							 "length " + size);
+				unrepairable.incrementAndGet();
+			}
+			else if (size == 0 && ownsBlocks[i])
+			{
+				problems.add("inode " + i + ": orphan, owns blocks but has " +
+							 "no name");
+				unrepairable.incrementAndGet();
+				orphans++;
+			}
+		}
+	}
+
+	// Chains every data block that no Inode owns into a new free list and
+	// points the SuperBlock at it.
+	private void rebuildFreeList()
+	{
+		int head = SuperBlock.NULL_PTR;
+		int tail = SuperBlock.NULL_PTR;
+		for (int i = dataStart; i < totalBlocks; i++)
+		{
+			int who = owner.get(i);
+			if (who != UNOWNED && who != FREE)
+				continue;
+			if (tail == SuperBlock.NULL_PTR)
+				head = i;
+			else
+				SysLib.short2bytes((short)i, image, tail * Disk.blockSize);
+			tail = i;
+		}
+		if (tail != SuperBlock.NULL_PTR)
+			SysLib.short2bytes(SuperBlock.NULL_PTR, image,
+							   tail * Disk.blockSize);
+		SysLib.int2bytes(head, image, 8);
+		SysLib.int2bytes(tail, image, 12);
+	}
+
+	private void print(String s)
+	{
+		if (standalone)
+			System.out.print(s);
+		else
+			SysLib.cout(s);
+	}
+}
@@ -9,6 +9,7 @@
 
 import java.lang.Exception;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Inode
 {
@@ -29,9 +30,33 @@ public class Inode
 	public short count;                            // # file-table entries 
 												   // pointing to this
 	public short flag;                             // 0 = unused, 1 = used, ...
+												   // (both in core only)
 	public short direct[] = new short[directSize]; // direct pointers
 	public short indirect;                         // a indirect pointer
 
+	// Open state, shared by all FileTableEntries of the file: the byte
+	// ranges of the reads and writes in progress and the advisory locks
+	public final RangeLock ranges = new RangeLock();
+	public final RangeLock advisory = new RangeLock();
+
+	// Guards the fields above against the threads sharing this Inode;
+	// findBlock holds it across disk I/O
+	public final ReentrantLock lock = new ReentrantLock();
+
+	private byte[] pointers;                       // the indirect block, once
+												   // findBlock needs it
+
+	// toDisk rewrites a whole block of Inodes; these keep two of them from
+	// rewriting the same block at once (block number % LOCKS)
+	private final static int LOCKS = 16;
+	private final static ReentrantLock[] blockLocks = new ReentrantLock[LOCKS];
+
+	static
+	{
+		for(int i = 0; i < LOCKS; i++)
+			blockLocks[i] = new ReentrantLock();
+	}
+
 //------------------------------------------------------------------------------
 // Default Constructor
 //------------------------------------------------------------------------------
@@ -73,17 +98,9 @@ public class Inode
 			// Increase the offset past the length.
 			offset += 4;
 
-			// Get the file-table entry count of this Inode.
-			count = SysLib.bytes2short(buffer, offset);
-
-			// Increase the offset past the count.
-			offset += 2;
-
-			// Get the flag of this Inode.
-			flag = SysLib.bytes2short(buffer, offset);
-
-			// Increase the offset past the flag.
-			offset += 2;
+			// Skip the count and the flag: the open state of a file is kept
+			// in core only, so an Inode read from disk is a closed one.
+			offset += 4;
 
 			// Get the direct pointers.
 			for(short i = 0; i < directSize; i++)
@@ -107,50 +124,144 @@ public class Inode
 	{
 		short blockNumber = getBlockNumber(iNumber);
 
-		if(blockNumber != ERROR)
+		if(blockNumber == ERROR)
+			return;
+
+		ReentrantLock blockLock = blockLocks[blockNumber % LOCKS];
+		blockLock.lock();
+		try
 		{
 			byte[] buffer = new byte[Disk.blockSize];
 
 			// Read in the existing contents of the block.
 			SysLib.rawread(blockNumber, buffer);
 
-			// Set the offset to the starting address.
-			short offset = getBlockOffset(iNumber);
+			// Encode under this Inode, whose fields writers change.
+			lock.lock();
+			try
+			{
+				encode(buffer, getBlockOffset(iNumber));
+			}
+			finally
+			{
+				lock.unlock();
+			}
 
-			// Write the length.
-			SysLib.int2bytes(length, buffer, offset);
+			// Log the block into the metadata journal.
+			Kernel.metawrite(blockNumber, buffer);
+		}
+		finally
+		{
+			blockLock.unlock();
+		}
+	}
 
-			// Increase the offset past the length.
-			offset += 4;
+//------------------------------------------------------------------------------
+// Writes the fields of this Inode at offset of an Inode block image.
+//------------------------------------------------------------------------------
+	private void encode(byte[] buffer, short offset)
+	{
+		// Write the length.
+		SysLib.int2bytes(length, buffer, offset);
 
-			// Write the count.
-			SysLib.short2bytes(count, buffer, offset);
+		// Increase the offset past the length.
+		offset += 4;
 
-			// Increase the offset past the count.
-			offset += 2;
+		// Write the count and the flag of a closed file, whatever the open
+		// state in core.
+		SysLib.short2bytes((short)0, buffer, offset);
+		offset += 2;
+		SysLib.short2bytes(UNUSED, buffer, offset);
+		offset += 2;
 
-			// Write the flag.
-			SysLib.short2bytes(flag, buffer, offset);
+		// Write the direct pointers.
+		for(int i = 0; i < directSize; i++)
+		{
+			// Write the ith direct pointer.
+			SysLib.short2bytes(direct[i], buffer, offset);
 
-			// Increase the offset past the flag.
+			// Increase the offset past the ith pointer.
 			offset += 2;
+		}
 
-			// Write the direct pointers.
-			for(int i = 0; i < directSize; i++)
-			{
-				// Write the ith direct pointer.
-				SysLib.short2bytes(direct[i], buffer, offset);
+		// Write the indirect pointer.
+		SysLib.short2bytes(indirect, buffer, offset);
+	}
 
-				// Increase the offset past the ith pointer.
-				offset += 2;
-			}
+//------------------------------------------------------------------------------
+// Returns the disk block that holds byte offset of the file, or ERROR if the
+// file has none there. If superblock is not null, a missing block is
+// allocated from it first, along with the indirect block if needed; the new
+// pointers are saved by the next toDisk, and the indirect block right away.
+// Returns ERROR if offset is past the largest file or the disk is full.
+//------------------------------------------------------------------------------
+	public int findBlock(int offset, SuperBlock superblock)
+	{
+		lock.lock();
+		try
+		{
+			return locate(offset, superblock);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private int locate(int offset, SuperBlock superblock)
+	{
+		int block = offset / Disk.blockSize;
+
+		if(block < directSize)
+		{
+			if(direct[block] == NULL_PTR && superblock != null)
+				direct[block] = (short)superblock.getFreeBlock();
+
+			return direct[block];
+		}
+
+		block -= directSize;
 
-			// Write the indirect pointer.
-			SysLib.short2bytes(indirect, buffer, offset);
+		if(block >= Disk.blockSize / 2)
+			return ERROR;
+
+		if(indirect == NULL_PTR)
+		{
+			if(superblock == null)
+				return ERROR;
 
-			// Write the block back to disk.
-			SysLib.rawwrite(blockNumber, buffer);
+			short newIndirect = (short)superblock.getFreeBlock();
+
+			if(newIndirect == NULL_PTR)
+				return ERROR;
+
+			// No pointers yet.
+			pointers = new byte[Disk.blockSize];
+			for(int i = 0; i < Disk.blockSize; i += 2)
+				SysLib.short2bytes(NULL_PTR, pointers, i);
+
+			indirect = newIndirect;
 		}
+		else if(pointers == null)
+		{
+			pointers = new byte[Disk.blockSize];
+			SysLib.rawread(indirect, pointers);
+		}
+
+		short target = SysLib.bytes2short(pointers, block * 2);
+
+		if(target == NULL_PTR && superblock != null)
+		{
+			target = (short)superblock.getFreeBlock();
+
+			if(target == NULL_PTR)
+				return ERROR;
+
+			SysLib.short2bytes(target, pointers, block * 2);
+			Kernel.metawrite(indirect, pointers);
+		}
+
+		return target;
 	}
 
 //------------------------------------------------------------------------------
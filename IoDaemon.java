@@ -0,0 +1,67 @@
+import java.util.*;
+
+// The kernel's I/O thread. It runs AsyncIo requests one at a time through
+// the file system and the Disk, which serves one request at a time anyway,
+// in the order they were issued, except that raw reads at the front of
+// the queue are independent of each other and are taken in elevator order.
+public class IoDaemon extends Thread
+{
+    private final Disk disk;
+    private final ArrayList<AsyncIo> queue = new ArrayList<AsyncIo>( );
+
+    public IoDaemon( Disk disk ) {
+	super( "aio" );
+	this.disk = disk;
+	setDaemon( true );
+    }
+
+    public synchronized void submit( AsyncIo io ) {
+	queue.add( io );
+	notify( );
+    }
+
+    // Requests queued or running
+    public synchronized int pending( ) {
+	return queue.size( );
+    }
+
+    private synchronized AsyncIo take( ) throws InterruptedException {
+	while ( queue.isEmpty( ) )
+	    wait( );
+	return queue.remove( next( ) );
+    }
+
+    // The index of the request to run next: the first one, or among the
+    // raw reads at the front, the lowest block at or past the disk head,
+    // wrapping around to the lowest block of all
+    private int next( ) {
+	int head = disk.getHead( );
+	int best = -1;
+	int lowest = 0;
+	for ( int i = 0; i < queue.size( ) &&
+		  queue.get( i ).op == AsyncIo.RAWREAD; i++ ) {
+	    int block = queue.get( i ).block;
+	    if ( block >= head && ( best < 0 || block < queue.get( best ).block ) )
+		best = i;
+	    if ( block < queue.get( lowest ).block )
+		lowest = i;
+	}
+	return ( best >= 0 ) ? best : lowest;
+    }
+
+    public void run( ) {
+	while ( true ) {
+	    try {
+		AsyncIo io = take( );
+		int result;
+		try {
+		    result = Kernel.runAsync( io );
+		} catch ( RuntimeException e ) {
+		    SysLib.cerr( "threadOS: asynchronous I/O failed: " + e + "\n" );
+		    result = Kernel.ERROR;
+		}
+		io.finish( result );
+	    } catch ( InterruptedException e ) { }
+	}
+    }
+}
@@ -0,0 +1,160 @@
+// A submission ring and a completion ring for batched system calls. A
+// program queues open, read, write, seek and rawread operations with the
+// prep methods, hands them all to the kernel with one SysLib.submit( ring ),
+// and then reaps one completion per operation, carrying the tag it was
+// queued with and the result the plain SysLib call would have returned.
+//
+// The kernel runs file operations in the order they were queued, but a run
+// of consecutive raw reads is independent disk work and goes to the disk
+// in elevator order, so completions need not come back in queue order.
+// Both rings are preallocated; a ring belongs to one thread.
+public class IoRing
+{
+    public static final int OPEN = 1;    // prepOpen( name, mode, tag )
+    public static final int READ = 2;    // prepRead( fd, buffer, tag )
+    public static final int WRITE = 3;   // prepWrite( fd, buffer, tag )
+    public static final int SEEK = 4;    // prepSeek( fd, offset, whence, tag )
+    public static final int RAWREAD = 5; // prepRawread( block, buffer, tag )
+
+    private final int mask; // capacity - 1; the capacity is a power of 2
+
+    // Submission ring: entries sqHead .. sqTail - 1, read by the kernel
+    final int[] op;
+    final int[] target;     // fd, or block number for RAWREAD
+    final int[] arg;        // open mode bits or seek offset
+    final int[] whence;
+    final String[] name;
+    final byte[][] buffer;
+    final long[] tag;
+    int sqHead = 0;
+    int sqTail = 0;
+
+    // Completion ring: entries cqHead .. cqTail - 1, filled by the kernel
+    private final long[] cqTag;
+    private final int[] cqResult;
+    private int cqHead = 0;
+    private int cqTail = 0;
+
+    final int[] order;      // scratch for the kernel to sort disk reads
+    private long lastTag;   // of the completion reap( ) moved to
+    private int lastResult;
+
+    // A ring of at least entries entries
+    public IoRing( int entries ) {
+	int capacity = 1;
+	while ( capacity < entries )
+	    capacity <<= 1;
+	mask = capacity - 1;
+	op = new int[capacity];
+	target = new int[capacity];
+	arg = new int[capacity];
+	whence = new int[capacity];
+	name = new String[capacity];
+	buffer = new byte[capacity][];
+	tag = new long[capacity];
+	cqTag = new long[capacity];
+	cqResult = new int[capacity];
+	order = new int[capacity];
+    }
+
+    public int capacity( ) {
+	return mask + 1;
+    }
+
+    // The prep methods return false if the submission ring is full.
+    // mode is "r", "w", "w+" or "a" as for SysLib.open.
+    public boolean prepOpen( String fileName, String mode, long userTag ) {
+	return prep( OPEN, -1, FileTableEntry.parseMode( mode ), 0,
+		     fileName, null, userTag );
+    }
+
+    public boolean prepRead( int fd, byte buf[], long userTag ) {
+	return prep( READ, fd, 0, 0, null, buf, userTag );
+    }
+
+    public boolean prepWrite( int fd, byte buf[], long userTag ) {
+	return prep( WRITE, fd, 0, 0, null, buf, userTag );
+    }
+
+    public boolean prepSeek( int fd, int offset, int from, long userTag ) {
+	return prep( SEEK, fd, offset, from, null, null, userTag );
+    }
+
+    public boolean prepRawread( int block, byte buf[], long userTag ) {
+	return prep( RAWREAD, block, 0, 0, null, buf, userTag );
+    }
+
+    private boolean prep( int code, int t, int a, int w, String n, byte b[],
+			  long userTag ) {
+	if ( sqTail - sqHead > mask )
+	    return false;
+	int s = sqTail & mask;
+	op[s] = code;
+	target[s] = t;
+	arg[s] = a;
+	whence[s] = w;
+	name[s] = n;
+	buffer[s] = b;
+	tag[s] = userTag;
+	sqTail++;
+	return true;
+    }
+
+    // Operations queued but not yet submitted
+    public int queued( ) {
+	return sqTail - sqHead;
+    }
+
+    // Move to the next completion; false if there is none. tag( ) and
+    // result( ) then describe it.
+    public boolean reap( ) {
+	if ( cqHead == cqTail )
+	    return false;
+	int s = cqHead++ & mask;
+	lastTag = cqTag[s];
+	lastResult = cqResult[s];
+	return true;
+    }
+
+    public long tag( ) {
+	return lastTag;
+    }
+
+    public int result( ) {
+	return lastResult;
+    }
+
+    // Completions not yet reaped
+    public int completed( ) {
+	return cqTail - cqHead;
+    }
+
+    // The following are for the kernel.
+
+    // The submission slot of the i-th queued operation
+    int slot( int i ) {
+	return ( sqHead + i ) & mask;
+    }
+
+    // Room left in the completion ring
+    int room( ) {
+	return mask + 1 - ( cqTail - cqHead );
+    }
+
+    // Post the result of the operation in submission slot s
+    void complete( int s, int result ) {
+	int c = cqTail++ & mask;
+	cqTag[c] = tag[s];
+	cqResult[c] = result;
+    }
+
+    // Drop the first n queued operations once they are complete
+    void consume( int n ) {
+	for ( int i = 0; i < n; i++ ) {
+	    int s = slot( i );
+	    name[s] = null; // let go of the program's buffers
+	    buffer[s] = null;
+	}
+	sqHead += n;
+    }
+}
@@ -0,0 +1,88 @@
+//*****************************************************************************
+//**  File: JoinBench.java
+//**
+//**  Description: Measures how long a parent takes to notice its children
+//**    exiting. Each round spawns a number of children that exit at once
+//**    and collects them all, with one SysLib.join per child, one
+//**    SysLib.waitpid per child in spawn order, or a single SysLib.joinAll.
+//**    The latency of a child is from its exit (SysLib.getstats) to the
+//**    call that collected it returning. Also reports the heap in use,
+//**    which includes the kernel's wait queues.
+//**
+//**    l JoinBench [children] [rounds] [join|waitpid|all]
+//*****************************************************************************
+
+public class JoinBench extends Thread {
+    private int children = 50;
+    private int rounds = 20;
+    private String mode = "join";
+    private boolean child = false;
+
+    public JoinBench( ) {
+    }
+
+    public JoinBench( String args[] ) {
+	if ( args[0].equals( "child" ) ) {
+	    child = true;
+	    return;
+	}
+	children = Integer.parseInt( args[0] );
+	if ( args.length > 1 )
+	    rounds = Integer.parseInt( args[1] );
+	if ( args.length > 2 )
+	    mode = args[2];
+    }
+
+    public void run( ) {
+	if ( child ) {
+	    SysLib.exit( );
+	    return;
+	}
+
+	String[] args = { "JoinBench", "child" };
+	long[] stats = new long[TCB.STATS];
+	int[] tids = new int[children];
+	long joins = 0;
+	long total = 0;
+	long max = 0;
+	long start = System.nanoTime( );
+	for ( int r = 0; r < rounds; r++ ) {
+	    int spawned = 0;
+	    for ( int i = 0; i < children; i++ )
+		if ( ( tids[spawned] = SysLib.exec( args ) ) >= 0 )
+		    spawned++;
+	    long now = 0;
+	    if ( mode.equals( "all" ) ) {
+		spawned = SysLib.joinAll( tids );
+		now = System.nanoTime( );
+	    }
+	    for ( int i = 0; i < spawned; i++ ) {
+		if ( mode.equals( "join" ) )
+		    tids[i] = SysLib.join( );
+		else if ( mode.equals( "waitpid" ) )
+		    tids[i] = SysLib.waitpid( tids[i] );
+		if ( !mode.equals( "all" ) )
+		    now = System.nanoTime( );
+		if ( tids[i] < 0 || SysLib.getstats( tids[i], stats ) < 0 ||
+		     stats[TCB.STAT_EXIT] == 0 )
+		    continue;
+		long latency = now - stats[TCB.STAT_EXIT];
+		joins++;
+		total += latency;
+		max = Math.max( max, latency );
+	    }
+	}
+	long elapsed = System.nanoTime( ) - start;
+
+	Runtime runtime = Runtime.getRuntime( );
+	System.gc( );
+	SysLib.cout( "JoinBench: " + mode + ", " + rounds + " rounds of " +
+		     children + " children in " + elapsed / 1000000 +
+		     " ms; exit to join avg " + total / Math.max( joins, 1 ) / 1000 +
+		     " us, max " + max / 1000 + " us\n" );
+	SysLib.cout( "JoinBench: heap in use " +
+		     ( runtime.totalMemory( ) - runtime.freeMemory( ) ) / 1024 +
+		     " KB\n" );
+	SysLib.exit( );
+    }
+}
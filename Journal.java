@@ -0,0 +1,547 @@
+//------------------------------------------------------------------------------
+// File:		Journal.java
+// Date:		10/19/2026
+// Description: A write-ahead journal for file system metadata. The journal
+//				lives in a reserved region past the last file system block, so
+//				the on-disk layout of the SuperBlock, Inodes and free list is
+//				unchanged. Metadata writes (Kernel.metawrite) are buffered in
+//				memory as whole block images and grouped into transactions.
+//				A group of transactions is committed to the log as:
+//
+//					descriptor block(s)  "JDSC", seq, count, home block numbers
+//					block images         one per home block
+//					commit block         "JCMT", seq, count, CRC32 of images
+//
+//				Committed images are written to their home locations lazily
+//				(checkpoint) when the log fills up, which also coalesces
+//				repeated writes of the same Inode or free list block. At boot,
+//				recover() replays only the committed tail of the log.
+//
+//				A commit waits until no operation is in progress, holding off
+//				new ones, so every operation is committed whole. One lock
+//				guards only the buffered images: the log and home location
+//				writes of commit and checkpoint run under a lock of their own,
+//				so reads served from the journal never wait for the disk. Both
+//				are ReentrantLocks rather than monitors, since a virtual
+//				thread blocked on a monitor, or doing disk I/O inside one,
+//				holds on to its carrier thread.
+//------------------------------------------------------------------------------
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.CRC32;
+
+public class Journal
+{
+	public final static int BLOCKS = 320;          // journal region size
+
+	private final static int HEADER_MAGIC = 0x4a484452; // "JHDR"
+	private final static int DESC_MAGIC = 0x4a445343;   // "JDSC"
+	private final static int COMMIT_MAGIC = 0x4a434d54; // "JCMT"
+
+	// Block numbers stored per descriptor block (after magic, seq, count).
+	private final static int DESC_ENTRIES = (Disk.blockSize - 12) / 4;
+
+	// Commit the running group after this many operations.
+	private final static int GROUP_OPS = 16;
+
+	private final int start;          // header block of the journal region
+	private final int logBlocks;      // blocks available for the log itself
+
+	// Held while writing the log or home locations; guards these two.
+	private final ReentrantLock io = new ReentrantLock();
+	private int seq;                  // sequence number of the next commit
+	private int logHead;              // next free log block (relative)
+
+	// Images of the running (uncommitted) group, in home block order.
+	// Guards the images and operation counts below; changed is signalled
+	// when operations end or a commit takes the running group.
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	private TreeMap<Integer, byte[]> running;
+	// Images of the group being written to the log by commit, or null.
+	private TreeMap<Integer, byte[]> writing;
+	// Images committed to the log but not yet checkpointed; changed only
+	// under io as well.
+	private HashMap<Integer, byte[]> committed;
+
+	private int activeOps;            // operations currently in progress
+	private int groupOps;             // operations finished in this group
+	private boolean draining;         // a commit is due: begin() waits
+	private volatile Thread flusher;  // thread writing home locations
+
+//------------------------------------------------------------------------------
+// Default Constructor. fsBlocks is the number of file system blocks; the
+// journal occupies blocks [fsBlocks, fsBlocks + journalBlocks).
+//------------------------------------------------------------------------------
+	public Journal(int fsBlocks, int journalBlocks)
+	{
+		start = fsBlocks;
+		logBlocks = journalBlocks - 1;
+		seq = 1;
+		logHead = 0;
+		running = new TreeMap<Integer, byte[]>();
+		writing = null;
+		committed = new HashMap<Integer, byte[]>();
+		activeOps = 0;
+		groupOps = 0;
+		draining = false;
+		flusher = null;
+	}
+
+//------------------------------------------------------------------------------
+// Replays every committed transaction found after the header and resets the
+// log. Returns the number of transactions replayed.
+//------------------------------------------------------------------------------
+	public int recover()
+	{
+		lock.lock();
+		try
+		{
+			return replay();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private int replay()
+	{
+		byte[] buffer = new byte[Disk.blockSize];
+
+		SysLib.rawread(start, buffer);
+		if (SysLib.bytes2int(buffer, 0) == HEADER_MAGIC)
+			seq = SysLib.bytes2int(buffer, 4);
+
+		int replayed = 0;
+		int offset = 0;
+
+		while (true)
+		{
+			ArrayList<Integer> homes = new ArrayList<Integer>();
+			int descBlocks = readDescriptors(offset, homes);
+
+			if (descBlocks == 0)
+				break;
+
+			int imageStart = offset + descBlocks;
+			int commitBlock = imageStart + homes.size();
+
+			if (commitBlock >= logBlocks)
+				break;
+
+			// Verify the commit record before touching any home block.
+			CRC32 crc = new CRC32();
+			ArrayList<byte[]> images = new ArrayList<byte[]>();
+
+			for (int i = 0; i < homes.size(); i++)
+			{
+				byte[] image = new byte[Disk.blockSize];
+				SysLib.rawread(logBlock(imageStart + i), image);
+				crc.update(image, 0, image.length);
+				images.add(image);
+			}
+
+			SysLib.rawread(logBlock(commitBlock), buffer);
+			if (SysLib.bytes2int(buffer, 0) != COMMIT_MAGIC ||
+				SysLib.bytes2int(buffer, 4) != seq ||
+				SysLib.bytes2int(buffer, 8) != homes.size() ||
+				SysLib.bytes2int(buffer, 12) != (int)crc.getValue())
+				break;
+
+			for (int i = 0; i < homes.size(); i++)
+				SysLib.rawwrite(homes.get(i), images.get(i));
+
+			seq++;
+			replayed++;
+			offset = commitBlock + 1;
+		}
+
+		logHead = 0;
+		writeHeader();
+
+		if (replayed > 0)
+			SysLib.cerr("threadOS: journal replayed " + replayed +
+						" transaction(s)\n");
+		return replayed;
+	}
+
+//------------------------------------------------------------------------------
+// Checks a raw disk image (e.g. the DISK file read by an offline tool) for
+// transactions that recover() would still replay.
+//------------------------------------------------------------------------------
+	public static boolean hasLiveTail(byte[] image, int fsBlocks)
+	{
+		int header = fsBlocks * Disk.blockSize;
+		int first = header + Disk.blockSize;
+
+		if (image.length < first + Disk.blockSize ||
+			SysLib.bytes2int(image, header) != HEADER_MAGIC)
+			return false;
+		return SysLib.bytes2int(image, first) == DESC_MAGIC &&
+			SysLib.bytes2int(image, first + 4) ==
+			SysLib.bytes2int(image, header + 4);
+	}
+
+//------------------------------------------------------------------------------
+// Marks the start of a metadata operation. Groups are never committed while
+// an operation is in progress, so every operation is atomic. Waits while a
+// commit is due, so that the operations in progress can drain.
+//------------------------------------------------------------------------------
+	public void begin()
+	{
+		lock.lock();
+		try
+		{
+			while (draining)
+				changed.awaitUninterruptibly();
+			activeOps++;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Marks the end of a metadata operation and commits the running group once
+// enough operations have been batched. A group nearing the size the log can
+// take is committed as soon as the operations in progress end, and no new
+// one begins before that.
+//------------------------------------------------------------------------------
+	public void end()
+	{
+		lock.lock();
+		try
+		{
+			if (activeOps > 0)
+				activeOps--;
+			groupOps++;
+			if (nearFull())
+				draining = true;
+			if (activeOps > 0)
+				return;
+			changed.signalAll();	// a commit may be waiting for quiescence
+			if (groupOps < GROUP_OPS && !nearFull())
+				return;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		commit();
+	}
+
+//------------------------------------------------------------------------------
+// Logs a metadata block image into the running group.
+//------------------------------------------------------------------------------
+	public void log(int blockNumber, byte[] buffer)
+	{
+		lock.lock();
+		try
+		{
+			byte[] image = running.get(blockNumber);
+			if (image == null)
+			{
+				image = new byte[Disk.blockSize];
+				running.put(blockNumber, image);
+			}
+			System.arraycopy(buffer, 0, image, 0, Disk.blockSize);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Serves a read from a buffered image. Returns false if the block has no
+// image in the journal and must be read from disk.
+//------------------------------------------------------------------------------
+	public boolean read(int blockNumber, byte[] buffer)
+	{
+		lock.lock();
+		try
+		{
+			byte[] image = running.get(blockNumber);
+			if (image == null && writing != null)
+				image = writing.get(blockNumber);
+			if (image == null)
+				image = committed.get(blockNumber);
+			if (image == null)
+				return false;
+			System.arraycopy(image, 0, buffer, 0, Disk.blockSize);
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Absorbs a plain (data) write into a buffered image of the same block, so a
+// later checkpoint cannot overwrite it with stale metadata. Returns false if
+// the block has no image and must be written to disk.
+//------------------------------------------------------------------------------
+	public boolean absorb(int blockNumber, byte[] buffer)
+	{
+		if (Thread.currentThread() == flusher)
+			return false;
+		lock.lock();
+		try
+		{
+			if (committed.containsKey(blockNumber) ||
+				(writing != null && writing.containsKey(blockNumber)))
+			{
+				// The committed image is immutable; supersede it in the log.
+				log(blockNumber, buffer);
+				return true;
+			}
+			byte[] image = running.get(blockNumber);
+			if (image == null)
+				return false;
+			System.arraycopy(buffer, 0, image, 0, Disk.blockSize);
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Drops every buffered image and resets the log. Used by format, which
+// rewrites all metadata from scratch.
+//------------------------------------------------------------------------------
+	public void reset()
+	{
+		io.lock();
+		try
+		{
+			lock.lock();
+			try
+			{
+				running.clear();
+				committed.clear();
+				groupOps = 0;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			logHead = 0;
+			writeHeader();
+		}
+		finally
+		{
+			io.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Writes the running group to the log as one transaction, once the
+// operations in progress have ended. A group that can never fit into the
+// log is written straight to its home locations. New operations log into a
+// fresh group meanwhile.
+//------------------------------------------------------------------------------
+	public void commit()
+	{
+		io.lock();
+		try
+		{
+			TreeMap<Integer, byte[]> group;
+			lock.lock();
+			try
+			{
+				draining = true;
+				while (activeOps > 0)
+					changed.awaitUninterruptibly();
+				group = running;
+				running = new TreeMap<Integer, byte[]>();
+				writing = group;
+				groupOps = 0;
+				draining = false;
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			try
+			{
+				if (!group.isEmpty())
+					write(group);
+			}
+			finally
+			{
+				lock.lock();
+				writing = null;
+				lock.unlock();
+			}
+		}
+		finally
+		{
+			io.unlock();
+		}
+	}
+
+	// With io held: logs group, then makes its images the committed ones
+	private void write(TreeMap<Integer, byte[]> group)
+	{
+		int descBlocks = descriptorsFor(group.size());
+		int needed = descBlocks + group.size() + 1;
+
+		if (logHead + needed > logBlocks)
+			checkpoint();
+
+		if (needed > logBlocks)
+		{
+			SysLib.cerr("threadOS: journal overflow, writing through\n");
+			writeHome(group);
+			return;
+		}
+
+		byte[] buffer = new byte[Disk.blockSize];
+		Integer[] homes = group.keySet().toArray(new Integer[0]);
+		CRC32 crc = new CRC32();
+
+		// Descriptor blocks.
+		for (int d = 0; d < descBlocks; d++)
+		{
+			int first = d * DESC_ENTRIES;
+			int count = Math.min(DESC_ENTRIES, homes.length - first);
+			Arrays.fill(buffer, (byte)0);
+			SysLib.int2bytes(DESC_MAGIC, buffer, 0);
+			SysLib.int2bytes(seq, buffer, 4);
+			// The last descriptor of a transaction has a negative count.
+			SysLib.int2bytes(d == descBlocks - 1 ? -count : count, buffer, 8);
+			for (int i = 0; i < count; i++)
+				SysLib.int2bytes(homes[first + i], buffer, 12 + i * 4);
+			SysLib.rawwrite(logBlock(logHead + d), buffer);
+		}
+
+		// Block images.
+		for (int i = 0; i < homes.length; i++)
+		{
+			byte[] image = group.get(homes[i]);
+			crc.update(image, 0, image.length);
+			SysLib.rawwrite(logBlock(logHead + descBlocks + i), image);
+		}
+
+		// Commit record. The transaction is durable once this block lands.
+		Arrays.fill(buffer, (byte)0);
+		SysLib.int2bytes(COMMIT_MAGIC, buffer, 0);
+		SysLib.int2bytes(seq, buffer, 4);
+		SysLib.int2bytes(homes.length, buffer, 8);
+		SysLib.int2bytes((int)crc.getValue(), buffer, 12);
+		SysLib.rawwrite(logBlock(logHead + needed - 1), buffer);
+
+		logHead += needed;
+		seq++;
+		lock.lock();
+		try
+		{
+			committed.putAll(group);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Writes every committed image to its home location and empties the log.
+// Reads are still served from the images until they are home.
+//------------------------------------------------------------------------------
+	public void checkpoint()
+	{
+		io.lock();
+		try
+		{
+			// Nobody changes committed without io, so it is read unlocked.
+			if (!committed.isEmpty())
+				writeHome(committed);
+			lock.lock();
+			try
+			{
+				committed.clear();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			logHead = 0;
+			writeHeader();
+		}
+		finally
+		{
+			io.unlock();
+		}
+	}
+
+	private void writeHome(Map<Integer, byte[]> images)
+	{
+		flusher = Thread.currentThread();
+		try
+		{
+			for (Map.Entry<Integer, byte[]> entry : images.entrySet())
+				SysLib.rawwrite(entry.getKey(), entry.getValue());
+		}
+		finally
+		{
+			flusher = null;
+		}
+	}
+
+	// The header records the first sequence number still live in the log;
+	// anything older left in the region is ignored by recover().
+	private void writeHeader()
+	{
+		byte[] buffer = new byte[Disk.blockSize];
+		SysLib.int2bytes(HEADER_MAGIC, buffer, 0);
+		SysLib.int2bytes(seq, buffer, 4);
+		SysLib.rawwrite(start, buffer);
+	}
+
+	// Reads the descriptor chain at offset into homes. Returns the number of
+	// descriptor blocks, or 0 if no valid transaction starts there.
+	private int readDescriptors(int offset, ArrayList<Integer> homes)
+	{
+		byte[] buffer = new byte[Disk.blockSize];
+
+		for (int d = 0; offset + d < logBlocks; d++)
+		{
+			SysLib.rawread(logBlock(offset + d), buffer);
+			int count = SysLib.bytes2int(buffer, 8);
+			if (SysLib.bytes2int(buffer, 0) != DESC_MAGIC ||
+				SysLib.bytes2int(buffer, 4) != seq ||
+				count == 0 || Math.abs(count) > DESC_ENTRIES)
+				return 0;
+			for (int i = 0; i < Math.abs(count); i++)
+				homes.add(SysLib.bytes2int(buffer, 12 + i * 4));
+			if (count < 0)
+				return d + 1;
+		}
+		return 0;
+	}
+
+	// Whether the running group has grown to half of what the log holds
+	private boolean nearFull()
+	{
+		return descriptorsFor(running.size()) + running.size() + 1 >
+			logBlocks / 2;
+	}
+
+	private int descriptorsFor(int images)
+	{
+		return Math.max(1, (images + DESC_ENTRIES - 1) / DESC_ENTRIES);
+	}
+
+	private int logBlock(int offset)
+	{
+		return start + 1 + offset;
+	}
+}
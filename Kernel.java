@@ -10,7 +10,7 @@ public class Kernel
    public final static int INTERRUPT_IO       = 3;  // Other I/O interrupts
 
    // System calls
-   public final static int BOOT    =  0; // SysLib.boot( )
+   public final static int BOOT    =  0; // SysLib.boot( String args[] )
    public final static int EXEC    =  1; // SysLib.exec(String args[])
    public final static int WAIT    =  2; // SysLib.join( )
    public final static int EXIT    =  3; // SysLib.exit( )
@@ -35,6 +35,22 @@ public class Kernel
    //              int whence )
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
+   // 20 is unused: metadata is logged by Kernel.metawrite( ), which is not
+   // a system call
+   public final static int AFFINITY = 21; // SysLib.setaffinity( int cpu )
+   public final static int SWITCHSTAT = 22; // SysLib.switchstats( long stats[] )
+   public final static int WEIGHT = 23; // SysLib.setweight( int weight )
+   public final static int DEADLINE = 24; // SysLib.setdeadline( int period,
+                                          //                     int budget )
+   public final static int WAITPERIOD = 25; // SysLib.waitperiod( )
+   public final static int MISSES = 26; // SysLib.deadlinemisses( int tid )
+   public final static int GETSTATS = 27; // SysLib.getstats( int tid,
+                                          //                  long stats[] )
+   public final static int THREADS = 28; // SysLib.threads( int tids[] )
+   public final static int QUANTUMSTAT = 29; // SysLib.quantumstats( long stats[] )
+   public final static int WAITPID = 30; // SysLib.waitpid( int tid )
+   public final static int WAITANY = 31; // SysLib.waitany( )
+   public final static int JOINALL = 32; // SysLib.joinAll( int tids[] )
 
    // Predefined file descriptors
    public final static int STDIN  = 0;
@@ -44,14 +60,18 @@ public class Kernel
    // Return values
    public final static int OK = 0;
    public final static int ERROR = -1;
+   public final static int RUNNING = -2; // waitany: no child has exited yet
 
    // System thread references
    private static Scheduler scheduler;
    private static Disk disk;
    private static Cache cache;
+   private static Journal journal;
+   private static ProgramRegistry programs; // user programs exec can start
+   private static ProcessPool pool;         // pre-started threads, or null
+   private static IoDaemon aio;             // runs asynchronous I/O
 
-   // Synchronized Queues
-   private static SyncQueue waitQueue;  // for threads to wait for their child
+   // Synchronized Queues (threads wait for their children on their TCBs)
    private static SyncQueue ioQueue;    // I/O queue
 
    // File System
@@ -62,23 +82,106 @@ public class Kernel
 
    public final static int NUM_BLOCKS = 1000;
 
+   // Run user programs on virtual threads ("threads=virtual" at boot)
+   private static boolean virtualThreads = false;
+   private static Method ofVirtual;    // Thread.ofVirtual( )
+   private static Method unstarted;    // Thread.Builder.unstarted( Runnable )
+
    // Standard input
    private static BufferedReader input
       = new BufferedReader( new InputStreamReader( System.in ) );
 
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
+      // With a CPU gate, a user thread may only pass through the kernel
+      // while the scheduler has given it the CPU
+      TCB gated = ( irq == INTERRUPT_SOFTWARE ) ? gatedTcb( ) : null;
+      if ( gated == null )
+         return service( irq, cmd, param, args );
+      scheduler.recordSwitch( gated.enterKernel( ) );
+      try {
+         return service( irq, cmd, param, args );
+      } finally {
+         scheduler.recordSwitch( gated.exitKernel( ) );
+      }
+   }
+
+   // A safepoint for user code that runs long without system calls:
+   // wait here if the scheduler has taken the CPU away
+   public static void safepoint( ) {
+      TCB gated = gatedTcb( );
+      if ( gated != null )
+         scheduler.recordSwitch( gated.safepoint( ) );
+   }
+
+   // The caller's TCB if its CPU use is gated, otherwise null
+   private static TCB gatedTcb( ) {
+      return ( scheduler != null && scheduler.getCpuGate( ) ) ?
+         scheduler.getMyTcb( ) : null;
+   }
+
+   private static int service( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
                case BOOT:
-                  // instantiate and start a scheduler
-                  scheduler = new Scheduler( ); 
+                  // boot options are given as key=value pairs
+                  Map<String,String> options = bootOptions( ( String[] )args );
+
+                  // instantiate and start a scheduler of the selected class
+                  int quantum = intOption( options, "quantum",
+                                           Scheduler.getDefaultTimeSlice( ) );
+                  RunQueue[] runQueues  // one per virtual CPU
+                     = new RunQueue[Math.max( intOption( options, "cpus", 1 ), 1 )];
+                  for ( int i = 0; i < runQueues.length; i++ ) {
+                     runQueues[i] = RunQueue.create( options.get( "sched" ), 
+                                                     quantum, options );
+                     if ( runQueues[i] == null ) {
+                        System.out.println( "threadOS: unknown scheduler " +
+                                            options.get( "sched" ) );
+                        return ERROR;
+                     }
+                  }
+                  virtualThreads = "virtual".equals( options.get( "threads" ) );
+                  if ( virtualThreads && !initVirtualThreads( ) ) {
+                     System.out.println( "threadOS: this JVM has no virtual " +
+                                         "threads" );
+                     return ERROR;
+                  }
+                  scheduler = new Scheduler( quantum, 
+                                             intOption( options, "maxthreads",
+                                                Scheduler.DEFAULT_MAX_THREADS ),
+                                             runQueues ); 
+                  scheduler.setCpuGate( virtualThreads ||
+                     !"priority".equals( options.get( "dispatch" ) ) );
                   scheduler.start( );
 
+                  // look up the programs in the manifest, if any, up front
+                  programs = new ProgramRegistry( );
+                  if ( options.get( "programs" ) != null )
+                     programs.preload( options.get( "programs" ) );
+
+                  // pre-start threads for exec
+                  TCB.setBanner( !"off".equals( options.get( "banner" ) ) );
+                  pool = null;
+                  if ( intOption( options, "pool", 0 ) > 0 ) {
+                     try {
+                        pool = new ProcessPool( intOption( options, "pool", 0 ),
+                           new ProcessPool.ThreadFactory( ) {
+                              public Thread newThread( Runnable r ) 
+                                 throws ReflectiveOperationException {
+                                 return newUserThread( r );
+                              }
+                           } );
+                     } catch ( ReflectiveOperationException e ) {
+                        System.out.println( e );
+                        return ERROR;
+                     }
+                  }
+
                   // instantiate and start a disk
-                  disk = new Disk( NUM_BLOCKS );
+                  disk = new Disk( NUM_BLOCKS + Journal.BLOCKS );
                   disk.start( );
 
                   // instantiate a cache memory
@@ -86,19 +189,42 @@ public class Kernel
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
-                  waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
+
+                  // replay the metadata journal before mounting
+                  journal = new Journal( NUM_BLOCKS, Journal.BLOCKS );
+                  journal.recover( );
 
                   // instantiate a file system;
-                  fs = new FileSystem( NUM_BLOCKS );
+                  fs = new FileSystem( NUM_BLOCKS, journal );
+
+                  // and the thread behind SysLib.readAsync and friends
+                  aio = new IoDaemon( disk );
+                  aio.start( );
 
                   return OK;
                case EXEC:
-                  return sysExec( ( String[] )args );
-               case WAIT:
+                  return sysExec( ( String[] )args, param ); // param = weight
+               case WAIT:    // the first child to exit, or ERROR if none left
+                  return waitChild( scheduler.getMyTcb( ), -1 );
+               case WAITPID: // child param, once it has exited
+                  return ( param >= 0 ) ?
+                     waitChild( scheduler.getMyTcb( ), param ) : ERROR;
+               case WAITANY: // an exited child, without waiting
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     int myTid = myTcb.getTid( ); // get my thread ID
-                     return waitQueue.enqueueAndSleep( myTid ); //wait on my tid
-                     // woken up by my child thread
+                     int child = myTcb.reapChild( -1 );
+                     return ( child == TCB.CHILD_RUNNING ) ? RUNNING : child;
+                  }
+                  return ERROR;
+               case JOINALL: // every child, once all have exited
+                  if ( !( args instanceof int[] ) ) // null or not an int[]
+                     return ERROR;
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     int[] tids = ( int[] )args;
+                     int n;
+                     while ( ( n = myTcb.reapChildren( tids ) ) ==
+                             TCB.CHILD_RUNNING )
+                        awaitChild( myTcb );
+                     return n;
                   }
                   return ERROR;
                case EXIT:
@@ -106,10 +232,19 @@ public class Kernel
                      int myPid = myTcb.getPid( ); // get my parent ID
                      int myTid = myTcb.getTid( ); // get my ID
                      if ( myPid != -1 ) {
-                        // wake up a thread waiting on my parent ID
-                        waitQueue.dequeueAndWakeup( myPid, myTid );
+                        // close my files, unless another thread still
+                        // shares my fds
+                        FileTableEntry open[] = myTcb.releaseFds( );
+                        for ( int i = FdTable.FIRST_FD; i < open.length; i++ )
+                           if ( open[i] != null )
+                              fs.close( open[i] );
                         // I'm terminated!
                         scheduler.deleteThread( );
+                        // tell my parent, unless it is gone and its slot
+                        // belongs to another thread
+                        TCB parent = scheduler.getTcb( myPid );
+                        if ( parent != null )
+                           parent.childExited( myTid );
                         return OK;
                      }
                   }
@@ -118,23 +253,19 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return rawRead( param, ( byte[] )args );
                case RAWWRITE: // write a block of data to disk
+                  if ( journal != null && journal.absorb( param, ( byte[] )args ) )
+                     return OK; // folded into a pending metadata image
                   while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                     sleepOn( ioQueue, COND_DISK_REQ );
+                  awaitDisk( );
                   return OK;
                case SYNC:     // synchronize disk data to a real file
                   fs.sync( );
                   while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                     sleepOn( ioQueue, COND_DISK_REQ );
+                  awaitDisk( );
                   return OK;
                case READ:
                   switch ( param ) {
@@ -161,12 +292,10 @@ public class Kernel
                         System.out.println( "threaOS: caused read errors" );
                         return ERROR;
                   }
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.read( ftEnt, ( byte[] )args );
-                  }
-                  return ERROR;
+                  if ( !( args instanceof byte[] ) ) // null or not a buffer
+                     return ERROR;
+                  return fileRead( scheduler.getMyTcb( ), param,
+                                   ( byte[] )args );
                case WRITE:
                   switch ( param ) {
                      case STDIN:
@@ -179,12 +308,10 @@ public class Kernel
                         System.err.print( (String)args );
                         return OK;
                   }
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.write( ftEnt, ( byte[] )args );
-                  }
-                  return ERROR;
+                  if ( !( args instanceof byte[] ) ) // null or not a buffer
+                     return ERROR;
+                  return fileWrite( scheduler.getMyTcb( ), param,
+                                    ( byte[] )args );
                case CREAD:   // to be implemented in assignment 4
                   return cache.read( param, ( byte[] )args ) ? OK : ERROR;
                case CWRITE:  // to be implemented in assignment 4
@@ -195,49 +322,59 @@ public class Kernel
                case CFLUSH:  // to be implemented in assignment 4
                   cache.flush( );
                   return OK;
-               case OPEN:    // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     String[] s = ( String[] )args;
-                     return myTcb.getFd( fs.open( s[0], s[1] ) );
-                  } else
-                     return ERROR;
-               case CLOSE:   // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt == null || fs.close( ftEnt ) == false )
-                        return ERROR;
-                     if ( myTcb.returnFd( param ) != ftEnt )
-                        return ERROR;
-                     return OK;
-                  }
-                  return ERROR;
-               case SIZE:    // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.fsize( ftEnt );
-                  }
-                  return ERROR;
-               case SEEK:    // to be implemented in project
-                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-                     int[] seekArgs = ( int[] )args;
-                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
-                     if ( ftEnt != null )
-                        return fs.seek( ftEnt, seekArgs[0], seekArgs[1] );
-                  } 
-                  return ERROR;
+               case OPEN:    // args = { fileName, mode }
+                  String[] s = ( String[] )args;
+                  return fileOpen( scheduler.getMyTcb( ), s[0],
+                                   FileTableEntry.parseMode( s[1] ) );
+               case CLOSE:
+                  return fileClose( scheduler.getMyTcb( ), param );
+               case SIZE:
+                  return fileSize( scheduler.getMyTcb( ), param );
+               case SEEK:    // args = { offset, whence }
+                  int[] seekArgs = ( int[] )args;
+                  return fileSeek( scheduler.getMyTcb( ), param,
+                                   seekArgs[0], seekArgs[1] );
                case FORMAT:  // to be implemented in project
                   return ( fs.format( param ) == true ) ? OK : ERROR;
                case DELETE:  // to be implemented in project
                   return ( fs.delete( (String)args ) == true ) ? OK : ERROR;
+               case AFFINITY: // pin myself to a CPU (-1: any CPU)
+                  return scheduler.setAffinity( param ) ? OK : ERROR;
+               case WEIGHT: // set my CPU share weight
+                  return scheduler.setWeight( param ) ? OK : ERROR;
+               case DEADLINE: // args = { period, budget } in ms
+                  int[] deadline = ( int[] )args;
+                  return scheduler.setDeadline( deadline[0], deadline[1] ) ?
+                     OK : ERROR;
+               case WAITPERIOD: // my job is done until the next period
+                  return scheduler.waitPeriod( ) ? OK : ERROR;
+               case MISSES: // deadline misses of thread param (-1: me)
+                  return scheduler.getMisses( param );
+               case GETSTATS: // accounting of thread param (-1: me)
+                  return ( args instanceof long[] &&
+                           scheduler.getStats( param, ( long[] )args ) ) ?
+                     OK : ERROR;
+               case THREADS: // live thread IDs (null: just count them)
+                  if ( args != null && !( args instanceof int[] ) )
+                     return ERROR;
+                  return scheduler.getTids( ( int[] )args );
+               case QUANTUMSTAT: // slices handed out and their quanta
+                  return ( args instanceof long[] &&
+                           scheduler.getQuantumStats( ( long[] )args ) ) ?
+                     OK : ERROR;
+               case SWITCHSTAT: // context switch count, total and max ns
+                  return ( args instanceof long[] &&
+                           scheduler.getSwitchStats( ( long[] )args ) ) ?
+                     OK : ERROR;
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
+            // wake up the thread waiting for a service completion; the
+            // disk takes the next request once it has the result (awaitDisk)
             ioQueue.dequeueAndWakeup( COND_DISK_FIN );
 
-            // wake up the thread waiting for a request acceptance
-            ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+            // and let an idle scheduler dispatch it
+            scheduler.signal( );
 
             return OK;
          case INTERRUPT_IO:   // other I/O interrupts (not implemented)
@@ -246,50 +383,464 @@ public class Kernel
       return OK;
    }
 
-   // Spawning a new thread
-   private static int sysExec( String args[] ) {
-      String thrName = args[0]; // args[0] has a thread name
-      Object thrObj = null;
+   // Typed entry points of the file system calls, which SysLib calls
+   // directly rather than through interrupt( ): no Object arguments to
+   // box and cast, and the caller's TCB is looked up only once. Each one
+   // passes the CPU gate the same way interrupt( ) does.
+
+   // mode is made of FileTableEntry mode bits
+   public static int open( String fileName, int mode ) {
+      TCB myTcb = enter( );
+      try {
+         return fileOpen( myTcb, fileName, mode );
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   public static int read( int fd, byte buffer[] ) {
+      if ( fd < 3 ) // standard streams
+         return interrupt( INTERRUPT_SOFTWARE, READ, fd, buffer );
+      TCB myTcb = enter( );
+      try {
+         return fileRead( myTcb, fd, buffer );
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   public static int write( int fd, byte buffer[] ) {
+      if ( fd < 3 ) // standard streams
+         return interrupt( INTERRUPT_SOFTWARE, WRITE, fd, buffer );
+      TCB myTcb = enter( );
+      try {
+         return fileWrite( myTcb, fd, buffer );
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   public static int seek( int fd, int offset, int whence ) {
+      TCB myTcb = enter( );
+      try {
+         return fileSeek( myTcb, fd, offset, whence );
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   public static int close( int fd ) {
+      TCB myTcb = enter( );
+      try {
+         return fileClose( myTcb, fd );
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   public static int fsize( int fd ) {
+      TCB myTcb = enter( );
+      try {
+         return fileSize( myTcb, fd );
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   // Another fd for the open file of fd, sharing its seek pointer: the
+   // lowest one free
+   public static int dup( int fd ) {
+      TCB myTcb = enter( );
+      try {
+         return fileDup( myTcb, fd, -1 );
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   // The same at newFd, closing whatever newFd had open first; returns
+   // newFd
+   public static int dup2( int fd, int newFd ) {
+      TCB myTcb = enter( );
+      try {
+         return FdTable.isValid( newFd ) ? fileDup( myTcb, fd, newFd ) :
+            ERROR;
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   // Advisory byte-range lock (see FileSystem.lock); mode is a RangeLock
+   // mode. May wait for other threads to release theirs.
+   public static int lock( int fd, int offset, int length, int mode ) {
+      TCB myTcb = enter( );
+      try {
+         return fileLock( myTcb, fd, offset, length, mode );
+      } finally {
+         leave( myTcb );
+      }
+   }
 
+   // Run the operations queued on ring (see IoRing) in one kernel entry;
+   // returns how many were run, which is fewer than were queued only if
+   // the completion ring filled up
+   public static int submit( IoRing ring ) {
+      TCB myTcb = enter( );
       try {
-         //get the user thread class from its name
-         Class thrClass = Class.forName( thrName ); 
-         if ( args.length == 1 ) // no arguments
-            thrObj = thrClass.newInstance( ); // instantiate this class obj
-         else {                  // some arguments
-            // copy all arguments into thrArgs[] and make a new constructor
-            // argument object from thrArgs[]
-            String thrArgs[] = new String[ args.length - 1 ];
-            for ( int i = 1; i < args.length; i++ )
-               thrArgs[i - 1] = args[i];
-            Object[] constructorArgs = new Object[] { thrArgs };
-
-            // locate this class object's constructors
-            Constructor thrConst 
-               = thrClass.getConstructor( new Class[] {String[].class} );
-
-            // instantiate this class object by calling this constructor
-            // with arguments
-            thrObj = thrConst.newInstance( constructorArgs );
+         return ringSubmit( myTcb, ring );
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   // Asynchronous I/O (see AsyncIo): the request is checked and queued for
+   // the kernel's I/O thread, and the caller goes on at once. A refused
+   // request gets a handle already complete with ERROR.
+   public static AsyncIo readAsync( int fd, byte buffer[] ) {
+      return fileAsync( AsyncIo.READ, fd, buffer );
+   }
+
+   public static AsyncIo writeAsync( int fd, byte buffer[] ) {
+      return fileAsync( AsyncIo.WRITE, fd, buffer );
+   }
+
+   public static AsyncIo rawreadAsync( int blockId, byte buffer[] ) {
+      TCB myTcb = enter( );
+      try {
+         if ( buffer == null || blockId < 0 ||
+              blockId >= NUM_BLOCKS + Journal.BLOCKS )
+            return AsyncIo.failed( );
+         AsyncIo io = new AsyncIo( AsyncIo.RAWREAD, null, blockId, buffer );
+         aio.submit( io );
+         return io;
+      } finally {
+         leave( myTcb );
+      }
+   }
+
+   // Block until io completes; returns its result
+   public static int aioWait( AsyncIo io ) {
+      TCB myTcb = enter( );
+      try {
+         if ( myTcb == null || io.isDone( ) ) {
+            io.await( );
+            return io.result( );
+         }
+         // as in sleepOn( ), let the scheduler give the CPU away meanwhile
+         myTcb.setWaiting( true );
+         scheduler.signal( );
+         try {
+            io.await( );
+         } finally {
+            myTcb.setWaiting( false );
+            scheduler.signal( );
          }
-         // instantiate a new thread of this object
-         Thread t = new Thread( (Runnable)thrObj );
+         return io.result( );
+      } finally {
+         leave( myTcb );
+      }
+   }
 
-         // add this thread into scheduler's circular list.
-         TCB newTcb = scheduler.addThread( t );
-         return ( newTcb != null ) ? newTcb.getTid( ) : ERROR;
+   // The file is looked up now, so the fd must stay open until the
+   // operation completes; it reads or writes at the seek pointer as of
+   // when the I/O thread gets to it
+   private static AsyncIo fileAsync( int op, int fd, byte buffer[] ) {
+      TCB myTcb = enter( );
+      try {
+         FileTableEntry ftEnt = ( myTcb != null ) ? myTcb.getFtEnt( fd ) : null;
+         if ( ftEnt == null || buffer == null )
+            return AsyncIo.failed( );
+         AsyncIo io = new AsyncIo( op, ftEnt, -1, buffer );
+         aio.submit( io );
+         return io;
+      } finally {
+         leave( myTcb );
       }
-      catch ( ClassNotFoundException e ) {
-         System.out.println( e );
+   }
+
+   // Called by the I/O thread to run io
+   static int runAsync( AsyncIo io ) {
+      switch ( io.op ) {
+         case AsyncIo.READ:
+            return fs.read( io.ftEnt, io.buffer );
+         case AsyncIo.WRITE:
+            return fs.write( io.ftEnt, io.buffer );
+         case AsyncIo.RAWREAD:
+            return rawRead( io.block, io.buffer );
+      }
+      return ERROR;
+   }
+
+   // The caller's TCB, after it has passed the CPU gate if there is one
+   private static TCB enter( ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      if ( myTcb != null && scheduler.getCpuGate( ) )
+         scheduler.recordSwitch( myTcb.enterKernel( ) );
+      return myTcb;
+   }
+
+   private static void leave( TCB myTcb ) {
+      if ( myTcb != null && scheduler.getCpuGate( ) )
+         scheduler.recordSwitch( myTcb.exitKernel( ) );
+   }
+
+   // The file system calls proper, shared by the entry points above and
+   // interrupt( ); myTcb is null if the caller is not a threadOS thread
+   private static int fileOpen( TCB myTcb, String fileName, int mode ) {
+      if ( myTcb == null || mode < 0 )
+         return ERROR;
+      return myTcb.getFd( fs.open( fileName, mode ) );
+   }
+
+   private static int fileRead( TCB myTcb, int fd, byte buffer[] ) {
+      FileTableEntry ftEnt = ( myTcb != null ) ? myTcb.getFtEnt( fd ) : null;
+      return ( ftEnt != null ) ? fs.read( ftEnt, buffer ) : ERROR;
+   }
+
+   private static int fileWrite( TCB myTcb, int fd, byte buffer[] ) {
+      FileTableEntry ftEnt = ( myTcb != null ) ? myTcb.getFtEnt( fd ) : null;
+      return ( ftEnt != null ) ? fs.write( ftEnt, buffer ) : ERROR;
+   }
+
+   private static int fileSeek( TCB myTcb, int fd, int offset, int whence ) {
+      FileTableEntry ftEnt = ( myTcb != null ) ? myTcb.getFtEnt( fd ) : null;
+      return ( ftEnt != null ) ? fs.seek( ftEnt, offset, whence ) : ERROR;
+   }
+
+   private static int fileClose( TCB myTcb, int fd ) {
+      // free the fd first: a table shared with other threads is copied
+      // then, taking a reference to ftEnt of its own for close to drop
+      FileTableEntry ftEnt = ( myTcb != null ) ? myTcb.returnFd( fd ) : null;
+      return ( ftEnt != null && fs.close( ftEnt ) ) ? OK : ERROR;
+   }
+
+   // newFd is -1 for the lowest free fd
+   private static int fileDup( TCB myTcb, int fd, int newFd ) {
+      FileTableEntry ftEnt = ( myTcb != null ) ? myTcb.getFtEnt( fd ) : null;
+      if ( ftEnt == null )
+         return ERROR;
+      if ( newFd == fd )
+         return fd;
+      if ( !ftEnt.retain( ) ) // a reference for the new fd
          return ERROR;
+      if ( newFd == -1 ) {
+         newFd = myTcb.getFd( ftEnt );
+         if ( newFd == -1 )
+            fs.close( ftEnt ); // out of fds: drop the reference again
+         return newFd;
       }
-      catch ( NoSuchMethodException e ) {
-         System.out.println( e );
+      FileTableEntry replaced = myTcb.setFd( newFd, ftEnt );
+      if ( replaced != null )
+         fs.close( replaced );
+      return newFd;
+   }
+
+   private static int fileSize( TCB myTcb, int fd ) {
+      FileTableEntry ftEnt = ( myTcb != null ) ? myTcb.getFtEnt( fd ) : null;
+      return ( ftEnt != null ) ? fs.fsize( ftEnt ) : ERROR;
+   }
+
+   private static int fileLock( TCB myTcb, int fd, int offset, int length,
+                                int mode ) {
+      FileTableEntry ftEnt = ( myTcb != null ) ? myTcb.getFtEnt( fd ) : null;
+      return ( ftEnt != null && fs.lock( ftEnt, offset, length, mode ) ) ?
+         OK : ERROR;
+   }
+
+   private static int rawRead( int blockId, byte buffer[] ) {
+      if ( journal != null && journal.read( blockId, buffer ) )
+         return OK; // newer metadata image still in the journal
+      while ( disk.read( blockId, buffer ) == false )
+         sleepOn( ioQueue, COND_DISK_REQ );
+      awaitDisk( );
+      return OK;
+   }
+
+   // Log a metadata block image into the journal. For the file system's
+   // own Inode and SuperBlock writes only: user programs have no way to
+   // put blocks into the journal past the file system's checks.
+   static void metawrite( int blockId, byte buffer[] ) {
+      journal.log( blockId, buffer );
+   }
+
+   // Wait for the disk to finish the request I gave it. Only then does it
+   // take another one, so wake a thread it turned away in the meantime.
+   private static void awaitDisk( ) {
+      while ( disk.testAndResetReady( ) == false )
+         sleepOn( ioQueue, COND_DISK_FIN );
+      ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+   }
+
+   // File operations run in ring order; each run of consecutive raw reads
+   // is independent of the rest and goes to the disk as one batch
+   private static int ringSubmit( TCB myTcb, IoRing ring ) {
+      int n = Math.min( ring.queued( ), ring.room( ) );
+      for ( int i = 0; i < n; ) {
+         int s = ring.slot( i );
+         if ( ring.op[s] == IoRing.RAWREAD ) {
+            int end = i + 1;
+            while ( end < n && ring.op[ring.slot( end )] == IoRing.RAWREAD )
+               end++;
+            ringRawReads( ring, i, end );
+            i = end;
+            continue;
+         }
+         int result = ERROR;
+         switch ( ring.op[s] ) {
+            case IoRing.OPEN:
+               result = fileOpen( myTcb, ring.name[s], ring.arg[s] );
+               break;
+            case IoRing.READ:
+               result = fileRead( myTcb, ring.target[s], ring.buffer[s] );
+               break;
+            case IoRing.WRITE:
+               result = fileWrite( myTcb, ring.target[s], ring.buffer[s] );
+               break;
+            case IoRing.SEEK:
+               result = fileSeek( myTcb, ring.target[s], ring.arg[s],
+                                  ring.whence[s] );
+               break;
+         }
+         ring.complete( s, result );
+         i++;
+      }
+      ring.consume( n );
+      return n;
+   }
+
+   // Raw reads of ring entries from .. to - 1 in elevator order: by block
+   // number, starting at the disk head and wrapping around once, so the
+   // head sweeps across the disk instead of seeking back and forth
+   private static void ringRawReads( IoRing ring, int from, int to ) {
+      int[] order = ring.order;
+      int count = 0;
+      for ( int i = from; i < to; i++ ) { // insertion sort by block
+         int s = ring.slot( i );
+         int j = count++;
+         while ( j > 0 && ring.target[order[j - 1]] > ring.target[s] ) {
+            order[j] = order[j - 1];
+            j--;
+         }
+         order[j] = s;
+      }
+      int head = disk.getHead( );
+      int first = 0;
+      while ( first < count && ring.target[order[first]] < head )
+         first++;
+      for ( int k = 0; k < count; k++ ) {
+         int s = order[( first + k ) % count];
+         ring.complete( s, ( ring.buffer[s] != null ) ?
+                        rawRead( ring.target[s], ring.buffer[s] ) : ERROR );
+      }
+   }
+
+   // Wait for child of myTcb (-1: any child) to exit and return its tid,
+   // or ERROR if there is no such child
+   private static int waitChild( TCB myTcb, int child ) {
+      if ( myTcb == null )
          return ERROR;
+      int tid;
+      while ( ( tid = myTcb.reapChild( child ) ) == TCB.CHILD_RUNNING )
+         awaitChild( myTcb );
+      return tid;
+   }
+
+   // Park until a child of myTcb exits, giving the CPU away meanwhile as
+   // in sleepOn( )
+   private static void awaitChild( TCB myTcb ) {
+      myTcb.setWaiting( true );
+      scheduler.signal( );
+      try {
+         myTcb.awaitChild( );
+      } finally {
+         myTcb.setWaiting( false );
+         scheduler.signal( );
       }
-      catch ( InstantiationException e ) {
-         System.out.println( e );
+   }
+
+   // Sleep on a condition of queue, and tell the scheduler first so that
+   // it gives the CPU to another thread right away, and again on wakeup
+   // so that an idle CPU dispatches this thread
+   private static int sleepOn( SyncQueue queue, int condition ) {
+      TCB myTcb = scheduler.getMyTcb( );
+      if ( myTcb == null )
+         return queue.enqueueAndSleep( condition );
+      myTcb.setWaiting( true );
+      scheduler.signal( );
+      try {
+         return queue.enqueueAndSleep( condition );
+      } finally {
+         myTcb.setWaiting( false );
+         scheduler.signal( );
+      }
+   }
+
+   // Parse boot arguments of the form key=value, e.g. "sched=mlfq"
+   private static Map<String,String> bootOptions( String args[] ) {
+      Map<String,String> options = new HashMap<String,String>( );
+      if ( args != null ) {
+         for ( int i = 0; i < args.length; i++ ) {
+            int eq = args[i].indexOf( '=' );
+            if ( eq > 0 )
+               options.put( args[i].substring( 0, eq ), 
+                            args[i].substring( eq + 1 ) );
+         }
+      }
+      return options;
+   }
+
+   static int intOption( Map<String,String> options, String key, 
+                         int defaultValue ) {
+      try {
+         String value = options.get( key );
+         return ( value != null ) ? Integer.parseInt( value ) : defaultValue;
+      } catch ( NumberFormatException e ) {
+         return defaultValue;
+      }
+   }
+
+   // Look up the virtual thread builder by reflection, so the kernel still
+   // compiles and runs on JVMs that predate virtual threads
+   private static boolean initVirtualThreads( ) {
+      try {
+         ofVirtual = Thread.class.getMethod( "ofVirtual" );
+         unstarted = Class.forName( "java.lang.Thread$Builder" )
+            .getMethod( "unstarted", Runnable.class );
+         return true;
+      } catch ( ReflectiveOperationException e ) {
+         return false;
+      }
+   }
+
+   // Wrap a user program in a platform or a virtual thread
+   private static Thread newUserThread( Runnable program )
+      throws IllegalAccessException, InvocationTargetException {
+      if ( !virtualThreads )
+         return new Thread( program );
+      return ( Thread )unstarted.invoke( ofVirtual.invoke( null ), program );
+   }
+
+   // Spawning a new thread with a CPU share weight (0: the parent's)
+   private static int sysExec( String args[], int weight ) {
+      // instantiate the user program args[0] with args[1..]
+      Runnable thrObj = programs.newInstance( args );
+      if ( thrObj == null )
          return ERROR;
+
+      try {
+         // run it on a pooled thread if one is idle, otherwise on a new one
+         ProcessPool.Worker worker = ( pool != null ) ? pool.take( ) : null;
+         // add this thread into scheduler's circular list.
+         TCB newTcb = ( worker != null ) ?
+            scheduler.addThread( worker.getTcb( ), weight ) :
+            scheduler.addThread( newUserThread( thrObj ), weight );
+         if ( worker != null ) {
+            if ( newTcb == null )
+               pool.release( worker );
+            else
+               worker.start( thrObj );
+         }
+         return ( newTcb != null ) ? newTcb.getTid( ) : ERROR;
       }
       catch ( IllegalAccessException e ) {
          System.out.println( e );
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.*;
 
 public class Loader extends Thread
 {
@@ -15,6 +16,90 @@ public class Loader extends Thread
 	SysLib.cout( "?:       print a help message\n" );
 	SysLib.cout( "q:       exit from threadOS\n" );
 	SysLib.cout( "l prog:  load prog\n" );
+	SysLib.cout( "ps:      list threads with their scheduling stats\n" );
+	SysLib.cout( "top [n]: CPU use per thread, each second for n seconds\n" );
+    }
+
+    private static final int MAX_PS = 1024; // threads listed at most
+
+    // IDs of the live threads
+    private static int[] liveTids( ) {
+	int[] tids = new int[MAX_PS];
+	int n = Math.min( SysLib.threads( tids ), tids.length );
+	return Arrays.copyOf( tids, n );
+    }
+
+    private static long ms( long nanos ) {
+	return nanos / 1000000;
+    }
+
+    // Response, run, wait and age (turnaround once done) of every thread
+    private static void ps( ) {
+	long[] stats = new long[TCB.STATS];
+	SysLib.cout( "  TID   PID  RESP(ms)   RUN(ms)  WAIT(ms)   AGE(ms)" +
+		     "  DISPATCH\n" );
+	for ( int tid : liveTids( ) ) {
+	    if ( SysLib.getstats( tid, stats ) != OK )
+		continue; // gone in the meantime
+	    long first = stats[TCB.STAT_FIRST_RUN];
+	    long end = ( stats[TCB.STAT_EXIT] != 0 ) ?
+		stats[TCB.STAT_EXIT] : stats[TCB.STAT_NOW];
+	    SysLib.cout( String.format( "%5d %5d %9s %9d %9d %9d %9d\n", tid,
+		stats[TCB.STAT_PID],
+		( first != 0 ) ? "" + ms( first - stats[TCB.STAT_SUBMIT] ) : "-",
+		ms( stats[TCB.STAT_RUN] ), ms( stats[TCB.STAT_WAIT] ),
+		ms( end - stats[TCB.STAT_SUBMIT] ),
+		stats[TCB.STAT_DISPATCHES] ) );
+	}
+    }
+
+    // CPU and wait shares over each of the next n seconds, busiest first
+    private static void top( int n ) {
+	long[] stats = new long[TCB.STATS];
+	long[] quanta = new long[4];
+	long[] lastQuanta = new long[4];
+	Map<Integer,long[]> last = null; // tid -> { run, wait } at lastTime
+	long lastTime = 0;
+	for ( int round = 0; round <= n; round++ ) {
+	    long now = System.nanoTime( );
+	    SysLib.quantumstats( quanta );
+	    Map<Integer,long[]> sample = new HashMap<Integer,long[]>( );
+	    for ( int tid : liveTids( ) )
+		if ( SysLib.getstats( tid, stats ) == OK )
+		    sample.put( tid, new long[] { stats[TCB.STAT_RUN],
+						  stats[TCB.STAT_WAIT] } );
+	    if ( last != null ) {
+		long span = Math.max( now - lastTime, 1 );
+		List<long[]> rows = new ArrayList<long[]>( ); // tid, cpu, wait
+		for ( Map.Entry<Integer,long[]> e : sample.entrySet( ) ) {
+		    long[] before = last.get( e.getKey( ) );
+		    if ( before == null ) // new since the last round
+			before = new long[2];
+		    rows.add( new long[] { e.getKey( ),
+			( e.getValue( )[0] - before[0] ) * 1000 / span,
+			( e.getValue( )[1] - before[1] ) * 1000 / span } );
+		}
+		Collections.sort( rows, new Comparator<long[]>( ) {
+		    public int compare( long[] a, long[] b ) {
+			return Long.compare( b[1], a[1] );
+		    }
+		} );
+		long slices = quanta[0] - lastQuanta[0];
+		SysLib.cout( "quantum: " + quanta[2] + " ms for " + quanta[3] +
+			     " threads, " + slices + " slices averaging " +
+			     ( quanta[1] - lastQuanta[1] ) / Math.max( slices, 1 ) +
+			     " ms\n" );
+		SysLib.cout( "  TID   %CPU  %WAIT\n" );
+		for ( long[] row : rows )
+		    SysLib.cout( String.format( "%5d %5.1f%% %5.1f%%\n", row[0],
+						row[1] / 10.0, row[2] / 10.0 ) );
+	    }
+	    last = sample;
+	    lastTime = now;
+	    System.arraycopy( quanta, 0, lastQuanta, 0, quanta.length );
+	    if ( round < n )
+		SysLib.sleep( 1000 );
+	}
     }
 
     public void run( ) {
@@ -47,6 +132,25 @@ public class Loader extends Thread
 		}
 		SysLib.join( );
 		break;
+	    case 'p': // ps
+		ps( );
+		break;
+	    case 't': // top [n]
+		String topArgs[] = SysLib.stringToArgs( cmdLine );
+		int seconds = 5;
+		if ( topArgs.length > 1 ) {
+		    try {
+			seconds = Integer.parseInt( topArgs[1] );
+		    } catch ( NumberFormatException e ) {
+			seconds = -1;
+		    }
+		}
+		if ( seconds < 0 ) {
+		    SysLib.cerr( "usage: top [n], n a number of seconds\n" );
+		    break;
+		}
+		top( seconds );
+		break;
 	    case 'r':
 		break;
 	    }
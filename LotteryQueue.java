@@ -0,0 +1,45 @@
+import java.util.*;
+
+// Lottery scheduling: every thread holds as many tickets as its weight,
+// and each dispatch draws a ticket at random. The shares are the same as
+// with StrideQueue, but only on average; a draw is O(queued threads).
+public class LotteryQueue extends RunQueue
+{
+    private ArrayList<TCB> queue = new ArrayList<TCB>( );
+    private Random random = new Random( );
+
+    public LotteryQueue( int timeSlice ) {
+	super( timeSlice );
+    }
+
+    public synchronized void enqueue( TCB tcb ) {
+	queue.add( tcb );
+    }
+
+    public synchronized TCB dequeue( ) {
+	if ( queue.isEmpty( ) )
+	    return null;
+	long tickets = 0;
+	for ( TCB tcb : queue )
+	    tickets += tcb.getWeight( );
+	long winner = ( long )( random.nextDouble( ) * tickets );
+	for ( int i = 0; i < queue.size( ); i++ ) {
+	    winner -= queue.get( i ).getWeight( );
+	    if ( winner < 0 )
+		return queue.remove( i );
+	}
+	return queue.remove( queue.size( ) - 1 );
+    }
+
+    public synchronized TCB steal( int cpu ) {
+	for ( int i = queue.size( ) - 1; i >= 0; i-- ) {
+	    if ( runsOn( queue.get( i ), cpu ) )
+		return queue.remove( i );
+	}
+	return null;
+    }
+
+    public synchronized int size( ) {
+	return queue.size( );
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.*;
+
+// Multi-level feedback queue. Level 0 has the highest priority and the
+// shortest quantum; each lower level doubles it, and the lowest level gets
+// the full slice. A thread that uses its whole quantum is demoted one
+// level, a thread that blocks before its quantum expires (I/O, join) is
+// promoted one level, and every BOOST_INTERVAL all threads go back to
+// level 0 so CPU-bound threads cannot starve. New threads start at level
+// 0; a thread that wakes from a sleep or moves between CPUs keeps its
+// level, so neither sleeping nor being stolen undoes a demotion. A boost
+// resets the queued threads at once, and the running and sleeping ones
+// when they come back: their level was set before the boost.
+public class MlfqQueue extends RunQueue
+{
+    public static final int DEFAULT_LEVELS = 3;
+    private static final int BOOST_INTERVAL = 5000; // milliseconds
+
+    private LinkedList<TCB>[] levels;
+    private int count = 0;
+    private long lastBoost;
+
+    public MlfqQueue( int timeSlice ) {
+	this( timeSlice, DEFAULT_LEVELS );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public MlfqQueue( int timeSlice, int numLevels ) {
+	super( timeSlice );
+	levels = ( LinkedList<TCB>[] )new LinkedList<?>[ Math.max( numLevels, 1 ) ];
+	for ( int i = 0; i < levels.length; i++ )
+	    levels[i] = new LinkedList<TCB>( );
+	lastBoost = System.currentTimeMillis( );
+    }
+
+    public synchronized void enqueue( TCB tcb ) {
+	// a new TCB is at level 0, the highest priority
+	int level = boosted( tcb ) ? 0 :
+	    Math.min( tcb.getLevel( ), levels.length - 1 );
+	tcb.setLevel( level );
+	levels[level].addLast( tcb );
+	count++;
+    }
+
+    public synchronized void requeue( TCB tcb, boolean preempted ) {
+	int level = tcb.getLevel( );
+	if ( boosted( tcb ) )
+	    level = 0;
+	else if ( preempted )
+	    level = Math.min( level + 1, levels.length - 1 );
+	else
+	    level = Math.max( level - 1, 0 );
+	tcb.setLevel( level );
+	levels[level].addLast( tcb );
+	count++;
+    }
+
+    public synchronized TCB dequeue( ) {
+	if ( System.currentTimeMillis( ) - lastBoost >= BOOST_INTERVAL )
+	    boost( );
+	for ( int i = 0; i < levels.length; i++ ) {
+	    if ( levels[i].size( ) > 0 ) {
+		count--;
+		return levels[i].removeFirst( );
+	    }
+	}
+	return null;
+    }
+
+    // steal from the lowest level first, leaving interactive threads alone
+    public synchronized TCB steal( int cpu ) {
+	for ( int i = levels.length - 1; i >= 0; i-- ) {
+	    Iterator<TCB> it = levels[i].descendingIterator( );
+	    while ( it.hasNext( ) ) {
+		TCB tcb = it.next( );
+		if ( runsOn( tcb, cpu ) ) {
+		    it.remove( );
+		    count--;
+		    return tcb;
+		}
+	    }
+	}
+	return null;
+    }
+
+    // quantum = slice / 2^(lowest level - level)
+    public int quantum( TCB tcb ) {
+	int shift = levels.length - 1 - tcb.getLevel( );
+	return Math.max( slice( ) >> shift, 1 );
+    }
+
+    public synchronized int size( ) {
+	return count;
+    }
+
+    // Whether a boost came after tcb's level was set, while it was
+    // running, asleep or on another CPU
+    private boolean boosted( TCB tcb ) {
+	return tcb.getLevelTime( ) < lastBoost;
+    }
+
+    // Move every thread back to level 0, keeping their relative order
+    private void boost( ) {
+	lastBoost = System.currentTimeMillis( );
+	for ( int i = 1; i < levels.length; i++ ) {
+	    for ( TCB tcb : levels[i] )
+		tcb.setLevel( 0 );
+	    levels[0].addAll( levels[i] );
+	    levels[i].clear( );
+	}
+    }
+}
@@ -0,0 +1,79 @@
+//*****************************************************************************
+//**  File: OpenBench.java
+//**
+//**  Description: Open/close throughput. A number of workers open and close
+//**    a file for reading as fast as they can for a while, each its own
+//**    file or all of them the same one, and the total number of
+//**    open/close pairs per second is reported. Needs a formatted disk.
+//**
+//**    l OpenBench [workers] [seconds] [distinct|shared]
+//*****************************************************************************
+
+public class OpenBench extends Thread {
+    private static final int MAX_WORKERS = 64;
+    private static long[] done = new long[MAX_WORKERS]; // pairs per worker
+
+    private int workers = 4;
+    private int seconds = 5;
+    private boolean shared = false;
+    private int worker = -1; // >= 0: run as worker number worker
+    private String file;
+
+    public OpenBench( ) {
+    }
+
+    public OpenBench( String args[] ) {
+	if ( args[0].equals( "worker" ) ) {
+	    worker = Integer.parseInt( args[1] );
+	    file = args[2];
+	    seconds = Integer.parseInt( args[3] );
+	    return;
+	}
+	workers = Math.min( Integer.parseInt( args[0] ), MAX_WORKERS );
+	if ( args.length > 1 )
+	    seconds = Integer.parseInt( args[1] );
+	if ( args.length > 2 )
+	    shared = args[2].equals( "shared" );
+    }
+
+    public void run( ) {
+	if ( worker >= 0 ) {
+	    long end = System.currentTimeMillis( ) + seconds * 1000L;
+	    long pairs = 0;
+	    while ( System.currentTimeMillis( ) < end ) {
+		int fd = SysLib.open( file, "r" );
+		if ( fd < 0 )
+		    break;
+		SysLib.close( fd );
+		pairs++;
+	    }
+	    done[worker] = pairs;
+	    SysLib.exit( );
+	    return;
+	}
+
+	for ( int i = 0; i < workers; i++ ) {
+	    done[i] = 0;
+	    if ( i == 0 || !shared )
+		SysLib.close( SysLib.open( "openbench" + i, "w" ) );
+	}
+	for ( int i = 0; i < workers; i++ ) {
+	    String[] args = { "OpenBench", "worker", "" + i,
+			      "openbench" + ( shared ? 0 : i ), "" + seconds };
+	    SysLib.exec( args );
+	}
+	for ( int i = 0; i < workers; i++ )
+	    SysLib.join( );
+
+	long total = 0;
+	for ( int i = 0; i < workers; i++ )
+	    total += done[i];
+	SysLib.cout( "OpenBench: " + workers + " workers, " +
+		     ( shared ? "one shared file" : "a file each" ) + ": " +
+		     total / seconds + " open/close pairs/s\n" );
+	for ( int i = 0; i < workers; i++ )
+	    if ( i == 0 || !shared )
+		SysLib.delete( "openbench" + i );
+	SysLib.exit( );
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Pre-started threads for exec ("pool=N" boot option). An idle worker
+// waits for a program; sysExec takes one, binds its TCB shell to a new tid
+// with the scheduler and hands it the program, which then waits for its
+// first dispatch like a newly started thread. When the program is done
+// and the scheduler has reaped its TCB the worker goes back to the pool
+// instead of dying, so an exec creates neither a thread nor a TCB.
+public class ProcessPool
+{
+    // A pooled thread and the program it is to run next
+    public class Worker implements Runnable {
+	private Thread thread;
+	private TCB tcb; // the shell bound for each program
+	private volatile Runnable program = null;
+
+	public TCB getTcb( ) {
+	    return tcb;
+	}
+
+	// Run program on this worker; its TCB must be bound already
+	public void start( Runnable newProgram ) {
+	    program = newProgram;
+	    LockSupport.unpark( thread );
+	}
+
+	// An idle worker parks rather than waits on a monitor, which would
+	// pin the carrier of a virtual worker for as long as it is idle
+	private Runnable awaitProgram( ) {
+	    Runnable job;
+	    while ( ( job = program ) == null )
+		LockSupport.park( this );
+	    return job;
+	}
+
+	public void run( ) {
+	    while ( true ) {
+		Runnable job = awaitProgram( );
+		tcb.awaitStart( );   // wait to be dispatched, even ungated
+		Kernel.safepoint( ); // and for the CPU itself if gated
+		try {
+		    job.run( );
+		} catch ( Throwable e ) {
+		    System.out.println( e );
+		}
+		// a program that returns without SysLib.exit( ) exits here,
+		// or its TCB would stay behind with no thread of its own
+		if ( !tcb.getTerminated( ) )
+		    SysLib.exit( );
+		tcb.awaitReaped( );
+		program = null;
+		release( this );
+	    }
+	}
+    }
+
+    private final ArrayDeque<Worker> idle = new ArrayDeque<Worker>( );
+
+    // Start size workers, each on a thread made by factory
+    public ProcessPool( int size, ThreadFactory factory )
+	throws ReflectiveOperationException {
+	for ( int i = 0; i < size; i++ ) {
+	    Worker worker = new Worker( );
+	    worker.thread = factory.newThread( worker );
+	    worker.tcb = new TCB( worker.thread );
+	    worker.thread.start( );
+	    idle.push( worker );
+	}
+    }
+
+    // How the kernel makes threads (platform or virtual)
+    public interface ThreadFactory {
+	Thread newThread( Runnable r ) throws ReflectiveOperationException;
+    }
+
+    // An idle worker, or null if all are busy
+    public synchronized Worker take( ) {
+	return idle.poll( );
+    }
+
+    // Return a worker that is done, or was taken and not used
+    public synchronized void release( Worker worker ) {
+	idle.push( worker );
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// The user programs exec can start, by class name. The first exec of a
+// program finds its class and constructors by reflection and keeps method
+// handles for them; every later exec of that program only invokes a
+// handle. Programs listed in a manifest ("programs=" boot option) are
+// looked up at boot.
+public class ProgramRegistry
+{
+    // a program's constructors, each returning the new Runnable; a
+    // program may lack either one
+    private static class Program {
+	final MethodHandle noArgs;   // ( )
+	final MethodHandle withArgs; // ( String[] )
+
+	Program( MethodHandle noArgs, MethodHandle withArgs ) {
+	    this.noArgs = noArgs;
+	    this.withArgs = withArgs;
+	}
+    }
+
+    private static final MethodType NO_ARGS = 
+	MethodType.methodType( void.class );
+    private static final MethodType WITH_ARGS =
+	MethodType.methodType( void.class, String[].class );
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup( );
+    private final ConcurrentHashMap<String,Program> programs = 
+	new ConcurrentHashMap<String,Program>( );
+
+    // Look up every class named in manifest, one per line ('#' starts a
+    // comment); returns how many could be loaded
+    public int preload( String manifest ) {
+	int loaded = 0;
+	try {
+	    BufferedReader in = new BufferedReader( new FileReader( manifest ) );
+	    try {
+		String line;
+		while ( ( line = in.readLine( ) ) != null ) {
+		    int hash = line.indexOf( '#' );
+		    String name = ( hash >= 0 ? line.substring( 0, hash ) : line )
+			.trim( );
+		    if ( name.length( ) > 0 && program( name ) != null )
+			loaded++;
+		}
+	    } finally {
+		in.close( );
+	    }
+	} catch ( IOException e ) {
+	    System.out.println( e );
+	}
+	return loaded;
+    }
+
+    // Instantiate the program args[0] with args[1..], or return null
+    public Runnable newInstance( String args[] ) {
+	Program program = program( args[0] );
+	if ( program == null )
+	    return null;
+	try {
+	    if ( args.length == 1 ) { // no arguments
+		if ( program.noArgs != null )
+		    return ( Runnable )program.noArgs.invokeExact( );
+	    }
+	    else if ( program.withArgs != null ) {
+		String thrArgs[] = Arrays.copyOfRange( args, 1, args.length );
+		return ( Runnable )program.withArgs.invokeExact( thrArgs );
+	    }
+	    System.out.println( new NoSuchMethodException( args[0] + 
+		".<init>" + ( args.length == 1 ? "()" : "(String[])" ) ) );
+	} catch ( Throwable e ) { // thrown by the program's constructor
+	    System.out.println( e );
+	}
+	return null;
+    }
+
+    // The cached program, looking it up on first use
+    private Program program( String name ) {
+	Program program = programs.get( name );
+	if ( program != null )
+	    return program;
+	try {
+	    Class<?> thrClass = Class.forName( name );
+	    if ( !Runnable.class.isAssignableFrom( thrClass ) ) {
+		System.out.println( name + " is not a program" );
+		return null;
+	    }
+	    program = new Program( constructor( thrClass, NO_ARGS ),
+				   constructor( thrClass, WITH_ARGS ) );
+	    if ( program.noArgs == null && program.withArgs == null ) {
+		System.out.println( new NoSuchMethodException( name + ".<init>" ) );
+		return null;
+	    }
+	    Program raced = programs.putIfAbsent( name, program );
+	    return ( raced != null ) ? raced : program;
+	} catch ( ClassNotFoundException e ) {
+	    System.out.println( e );
+	    return null;
+	}
+    }
+
+    // A handle on the constructor of that type, typed to return Runnable,
+    // or null if there is none
+    private MethodHandle constructor( Class<?> thrClass, MethodType type ) {
+	try {
+	    return lookup.findConstructor( thrClass, type )
+		.asType( type.changeReturnType( Runnable.class ) );
+	} catch ( NoSuchMethodException e ) {
+	    return null;
+	} catch ( IllegalAccessException e ) {
+	    return null;
+	}
+    }
+}
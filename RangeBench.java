@@ -0,0 +1,119 @@
+//*****************************************************************************
+//**  File: RangeBench.java
+//**
+//**  Description: A data file shared by many readers and one appender.
+//**    Each reader opens the file, reads a random record and closes it
+//**    again, as fast as it can; the appender does the same adding a
+//**    record at the end. Reports the reads and appends done per second,
+//**    and checks every record read. Needs a formatted disk.
+//**
+//**    l RangeBench [readers] [seconds]
+//*****************************************************************************
+
+import java.util.Random;
+
+public class RangeBench extends Thread {
+    private static final int RECORD = 128;    // bytes per record
+    private static final int INITIAL = 16;    // records to start with
+    private static final String FILE = "rangebench";
+
+    private static long reads = 0;
+    private static long appends = 0;
+    private static long errors = 0;
+
+    private int readers = 4;
+    private int seconds = 10;
+    private String role = null; // "reader" or "appender" in a worker
+
+    public RangeBench( ) {
+    }
+
+    public RangeBench( String args[] ) {
+	if ( args[0].equals( "reader" ) || args[0].equals( "appender" ) ) {
+	    role = args[0];
+	    seconds = Integer.parseInt( args[1] );
+	    return;
+	}
+	readers = Integer.parseInt( args[0] );
+	if ( args.length > 1 )
+	    seconds = Integer.parseInt( args[1] );
+    }
+
+    public void run( ) {
+	if ( role != null ) {
+	    work( role.equals( "appender" ) );
+	    SysLib.exit( );
+	    return;
+	}
+
+	synchronized ( RangeBench.class ) {
+	    reads = appends = errors = 0;
+	}
+	SysLib.delete( FILE );
+	int fd = SysLib.open( FILE, "w" );
+	for ( int i = 0; i < INITIAL; i++ )
+	    SysLib.write( fd, record( i ) );
+	SysLib.close( fd );
+
+	String[] args = { "RangeBench", "appender", "" + seconds };
+	SysLib.exec( args );
+	args[1] = "reader";
+	for ( int i = 0; i < readers; i++ )
+	    SysLib.exec( args );
+	for ( int i = 0; i <= readers; i++ )
+	    SysLib.join( );
+
+	synchronized ( RangeBench.class ) {
+	    SysLib.cout( "RangeBench: " + readers + " readers, 1 appender: " +
+			 reads / seconds + " reads/s, " + appends / seconds +
+			 " appends/s" +
+			 ( errors == 0 ? "" : ", " + errors + " bad records" ) +
+			 "\n" );
+	}
+	SysLib.delete( FILE );
+	SysLib.exit( );
+    }
+
+    private void work( boolean appender ) {
+	Random random = new Random( );
+	byte[] buffer = new byte[RECORD];
+	long done = 0;
+	long bad = 0;
+	long end = System.currentTimeMillis( ) + seconds * 1000L;
+	while ( System.currentTimeMillis( ) < end ) {
+	    if ( appender ) {
+		int fd = SysLib.open( FILE, "a" );
+		int records = SysLib.fsize( fd ) / RECORD;
+		if ( SysLib.write( fd, record( records ) ) != RECORD )
+		    bad++;
+		SysLib.close( fd );
+	    } else {
+		int fd = SysLib.open( FILE, "r" );
+		int n = random.nextInt( SysLib.fsize( fd ) / RECORD );
+		SysLib.seek( fd, n * RECORD, 0 );
+		if ( SysLib.read( fd, buffer ) != RECORD ||
+		     SysLib.bytes2int( buffer, 0 ) != n ||
+		     buffer[RECORD - 1] != (byte)n )
+		    bad++;
+		SysLib.close( fd );
+	    }
+	    done++;
+	}
+	synchronized ( RangeBench.class ) {
+	    if ( appender )
+		appends += done;
+	    else
+		reads += done;
+	    errors += bad;
+	}
+    }
+
+    // Record n: its number, then bytes of n
+    private static byte[] record( int n ) {
+	byte[] record = new byte[RECORD];
+	for ( int i = 4; i < RECORD; i++ )
+	    record[i] = (byte)n;
+	SysLib.int2bytes( n, record, 0 );
+	return record;
+    }
+}
@@ -0,0 +1,157 @@
+//------------------------------------------------------------------------------
+// File:		RangeLock.java
+// Date:		10/19/2026
+// Description: Byte-range locks on one file. An owner holds ranges of bytes
+//				[start, end), each shared or exclusive. Shared ranges of
+//				different owners may overlap; an exclusive range overlaps no
+//				range of another owner. The ranges of one owner never conflict
+//				with each other: a new lock replaces whatever the owner held
+//				in that range, so a range can be upgraded, downgraded or
+//				released in part.
+//
+//				Every open Inode has two of these. The FileSystem locks the
+//				bytes of each read (shared) and write (exclusive) in one of
+//				them for the length of the call, so calls on disjoint ranges
+//				of a file run at the same time. The other holds the advisory
+//				locks of SysLib.lock, which conflict only with each other.
+//------------------------------------------------------------------------------
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class RangeLock
+{
+	public final static int UNLOCK = 0;		// modes of SysLib.lock: release,
+	public final static int SHARED = 1;		//    lock shared,
+	public final static int EXCLUSIVE = 2;	//    lock exclusive,
+	public final static int NOWAIT = 4;		//    fail instead of waiting
+
+	public final static int EOF = Integer.MAX_VALUE;	// end of an open range
+
+	private static class Range
+	{
+		final Object owner;
+		final int start;
+		final int end;
+		final boolean exclusive;
+
+		Range(Object owner, int start, int end, boolean exclusive)
+		{
+			this.owner = owner;
+			this.start = start;
+			this.end = end;
+			this.exclusive = exclusive;
+		}
+	}
+
+	private final ArrayList<Range> held = new ArrayList<Range>();
+	private int waiters;	// threads waiting in lock
+	private final ReentrantLock mutex = new ReentrantLock();
+	private final Condition released = mutex.newCondition();
+
+//------------------------------------------------------------------------------
+// Locks [start, end) for owner, waiting while another owner holds an
+// overlapping range that conflicts. Returns false, holding nothing new, if
+// it conflicts and wait is false.
+//------------------------------------------------------------------------------
+	public boolean lock(Object owner, int start, int end,
+						boolean exclusive, boolean wait)
+	{
+		mutex.lock();
+		try
+		{
+			while(conflicts(owner, start, end, exclusive))
+			{
+				if(!wait)
+					return false;
+
+				waiters++;
+				try
+				{
+					released.awaitUninterruptibly();
+				}
+				finally
+				{
+					waiters--;
+				}
+			}
+
+			// A downgrade may let others in.
+			boolean dropped = release(owner, start, end);
+			held.add(new Range(owner, start, end, exclusive));
+
+			if(dropped && waiters > 0)
+				released.signalAll();
+
+			return true;
+		}
+		finally
+		{
+			mutex.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Releases whatever owner holds in [start, end).
+//------------------------------------------------------------------------------
+	public void unlock(Object owner, int start, int end)
+	{
+		mutex.lock();
+		try
+		{
+			if(release(owner, start, end) && waiters > 0)
+				released.signalAll();
+		}
+		finally
+		{
+			mutex.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Releases every range owner holds.
+//------------------------------------------------------------------------------
+	public void unlockAll(Object owner)
+	{
+		unlock(owner, 0, EOF);
+	}
+
+	private boolean conflicts(Object owner, int start, int end,
+							  boolean exclusive)
+	{
+		for(int i = 0; i < held.size(); i++)
+		{
+			Range r = held.get(i);
+
+			if(r.owner != owner && r.start < end && start < r.end &&
+				(exclusive || r.exclusive))
+				return true;
+		}
+
+		return false;
+	}
+
+	// Drops the part of owner's ranges inside [start, end); true if any
+	private boolean release(Object owner, int start, int end)
+	{
+		boolean released = false;
+
+		for(int i = held.size() - 1; i >= 0; i--)
+		{
+			Range r = held.get(i);
+
+			if(r.owner != owner || r.end <= start || end <= r.start)
+				continue;
+
+			held.remove(i);
+			released = true;
+
+			// Keep what lies outside; added past i, so not visited again.
+			if(r.start < start)
+				held.add(new Range(owner, r.start, start, r.exclusive));
+			if(end < r.end)
+				held.add(new Range(owner, end, r.end, r.exclusive));
+		}
+
+		return released;
+	}
+}
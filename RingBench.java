@@ -0,0 +1,94 @@
+//*****************************************************************************
+//**  File: RingBench.java
+//**
+//**  Description: Compares plain system calls with the same calls batched
+//**    through an IoRing (SysLib.submit). seek shows the cost of the kernel
+//**    entries alone; rawread reads blocks in random order, which the ring
+//**    sends to the disk in elevator order. The contents read both ways are
+//**    checked against each other.
+//**
+//**    l RingBench [seeks] [blocks] [ringSize]
+//*****************************************************************************
+
+import java.util.Random;
+
+public class RingBench extends Thread {
+    private int seeks = 1000000;
+    private int blocks = 32;
+    private int ringSize = 64;
+
+    public RingBench( ) {
+    }
+
+    public RingBench( String args[] ) {
+	seeks = Integer.parseInt( args[0] );
+	if ( args.length > 1 )
+	    blocks = Integer.parseInt( args[1] );
+	if ( args.length > 2 )
+	    ringSize = Integer.parseInt( args[2] );
+    }
+
+    public void run( ) {
+	IoRing ring = new IoRing( ringSize );
+	int fd = SysLib.open( "ringbench", "w+" );
+	if ( fd < 0 ) {
+	    SysLib.cout( "RingBench: cannot open ringbench (format first?)\n" );
+	    SysLib.exit( );
+	    return;
+	}
+
+	// seek: one call each, then ring.capacity( ) per submit
+	long start = System.nanoTime( );
+	for ( int i = 0; i < seeks; i++ )
+	    SysLib.seek( fd, 0, 0 );
+	long plain = System.nanoTime( ) - start;
+	start = System.nanoTime( );
+	for ( int i = 0; i < seeks; ) {
+	    while ( i < seeks && ring.prepSeek( fd, 0, 0, i ) )
+		i++;
+	    SysLib.submit( ring );
+	    while ( ring.reap( ) )
+		;
+	}
+	long batched = System.nanoTime( ) - start;
+	SysLib.cout( String.format( "seek     %d calls: %d ns/call plain, " +
+				    "%d ns/call in a ring\n", seeks,
+				    plain / seeks, batched / seeks ) );
+
+	// rawread: the same random blocks both ways
+	int[] block = new int[blocks];
+	Random random = new Random( 42 );
+	for ( int i = 0; i < blocks; i++ )
+	    block[i] = random.nextInt( Kernel.NUM_BLOCKS );
+	byte[][] plainData = new byte[blocks][Disk.blockSize];
+	byte[][] ringData = new byte[blocks][Disk.blockSize];
+
+	start = System.nanoTime( );
+	for ( int i = 0; i < blocks; i++ )
+	    SysLib.rawread( block[i], plainData[i] );
+	plain = System.nanoTime( ) - start;
+	int errors = 0;
+	start = System.nanoTime( );
+	for ( int i = 0; i < blocks; ) {
+	    while ( i < blocks && ring.prepRawread( block[i], ringData[i], i ) )
+		i++;
+	    SysLib.submit( ring );
+	    while ( ring.reap( ) )
+		if ( ring.result( ) != 0 )
+		    errors++;
+	}
+	batched = System.nanoTime( ) - start;
+	for ( int i = 0; i < blocks; i++ )
+	    if ( !java.util.Arrays.equals( plainData[i], ringData[i] ) )
+		errors++;
+	SysLib.cout( String.format( "rawread  %d blocks: %d ms plain, " +
+				    "%d ms in a ring%s\n", blocks,
+				    plain / 1000000, batched / 1000000,
+				    errors == 0 ? "" :
+				    " (" + errors + " errors)" ) );
+
+	SysLib.close( fd );
+	SysLib.delete( "ringbench" );
+	SysLib.exit( );
+    }
+}
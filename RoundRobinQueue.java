@@ -0,0 +1,36 @@
+import java.util.*;
+
+// Plain round robin: one FIFO and the same slice for everybody
+public class RoundRobinQueue extends RunQueue
+{
+    private LinkedList<TCB> queue = new LinkedList<TCB>( );
+
+    public RoundRobinQueue( int timeSlice ) {
+	super( timeSlice );
+    }
+
+    public synchronized void enqueue( TCB tcb ) {
+	queue.addLast( tcb );
+    }
+
+    public synchronized TCB dequeue( ) {
+	return queue.pollFirst( );
+    }
+
+    // the TCB that would wait longest here, i.e. the one at the tail
+    public synchronized TCB steal( int cpu ) {
+	Iterator<TCB> it = queue.descendingIterator( );
+	while ( it.hasNext( ) ) {
+	    TCB tcb = it.next( );
+	    if ( runsOn( tcb, cpu ) ) {
+		it.remove( );
+		return tcb;
+	    }
+	}
+	return null;
+    }
+
+    public synchronized int size( ) {
+	return queue.size( );
+    }
+}
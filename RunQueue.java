@@ -0,0 +1,90 @@
+import java.util.*;
+
+// The dispatch order of the Scheduler. A RunQueue holds the runnable TCBs;
+// the Scheduler takes one out with dequeue( ), lets it run for quantum( )
+// milliseconds and hands it back with requeue( ). Scheduling classes are
+// selected at boot by name (see Kernel and Boot).
+public abstract class RunQueue
+{
+    protected int timeSlice;
+
+    // Adaptive slices ("latency=" and "granularity=" boot options): every
+    // thread in the queue should get a turn within latency ms, so a slice
+    // is latency divided by the number of threads, but never shorter than
+    // granularity ms. latency 0 keeps the fixed timeSlice.
+    public static final int DEFAULT_GRANULARITY = 20;
+    private int latency = 0;
+    private int granularity = DEFAULT_GRANULARITY;
+
+    protected RunQueue( int timeSlice ) {
+	this.timeSlice = timeSlice;
+    }
+
+    // Creates the run queue named by the "sched=" boot option, or null if
+    // there is no such scheduling class
+    public static RunQueue create( String name, int timeSlice,
+				   Map<String,String> options ) {
+	RunQueue queue;
+	if ( name == null || name.equals( "rr" ) )
+	    queue = new RoundRobinQueue( timeSlice );
+	else if ( name.equals( "mlfq" ) )
+	    queue = new MlfqQueue( timeSlice, Kernel.intOption( options, "levels",
+							     MlfqQueue.DEFAULT_LEVELS ) );
+	else if ( name.equals( "stride" ) )
+	    queue = new StrideQueue( timeSlice );
+	else if ( name.equals( "lottery" ) )
+	    queue = new LotteryQueue( timeSlice );
+	else
+	    return null;
+	queue.setLatency( Kernel.intOption( options, "latency", 0 ),
+			  Kernel.intOption( options, "granularity",
+					    DEFAULT_GRANULARITY ) );
+	return queue;
+    }
+
+    public void setLatency( int latency, int granularity ) {
+	this.latency = Math.max( latency, 0 );
+	this.granularity = Math.max( granularity, 1 );
+    }
+
+    // Adds a TCB that is newly spawned, woken from a sleep or moved from
+    // another CPU
+    public abstract void enqueue( TCB tcb );
+
+    // Removes and returns the TCB to dispatch next, or null if none
+    public abstract TCB dequeue( );
+
+    // Returns a TCB after its slice. preempted is true if the thread used
+    // up its whole quantum and false if it blocked (I/O, sleep, join) first.
+    public void requeue( TCB tcb, boolean preempted ) {
+	enqueue( tcb );
+    }
+
+    // The slice length in milliseconds for this TCB
+    public int quantum( TCB tcb ) {
+	return slice( );
+    }
+
+    // The base slice right now: timeSlice, or with a latency target that
+    // target shared by the queued threads and the one about to run
+    protected int slice( ) {
+	if ( latency == 0 )
+	    return timeSlice;
+	return Math.max( latency / ( size( ) + 1 ), granularity );
+    }
+
+    // The number of queued TCBs
+    public abstract int size( );
+
+    // Removes and returns a TCB that another, idle CPU may run, or null.
+    // TCBs pinned to a different CPU are never handed out.
+    public TCB steal( int cpu ) {
+	return null;
+    }
+
+    // Whether tcb may run on cpu
+    protected static boolean runsOn( TCB tcb, int cpu ) {
+	int affinity = tcb.getAffinity( );
+	return affinity < 0 || affinity == cpu;
+    }
+}
@@ -1,117 +1,311 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class Scheduler extends Thread
 {
-    private Vector queue;
+    // every live TCB, indexed by its thread so getMyTcb( ) is O(1)
+    private ConcurrentHashMap<Thread,TCB> tcbs;
+    private Cpu[] cpus;         // virtual CPUs, each with its own run queue
+    private int nextCpu = 0;    // tie breaker when placing new threads
     private int timeSlice;
+    private TimerWheel timers = new TimerWheel( ); // wakes up SLEEP calls
     private static final int DEFAULT_TIME_SLICE = 1000;
+    private static final int BLOCK_POLL = 10; // ms between blocked checks
+
+    // Deadline threads may reserve up to this share of a CPU, in parts
+    // per million; the rest is left to the normal class
+    private static final int RT_LIMIT = 900000;
+
+    // Dispatch through the TCB CPU gate (LockSupport park/unpark) rather
+    // than through thread priorities, which most JVMs and OSes ignore
+    private boolean cpuGate = true;
+
+    // Context switch latency through the gate: grant to resumption
+    private final AtomicLong switches = new AtomicLong( );
+    private final AtomicLong switchNanos = new AtomicLong( );
+    private final AtomicLong maxSwitchNanos = new AtomicLong( );
+    public static final int SWITCH_STATS = 3; // longs getSwitchStats fills
+
+    // Quanta handed out, to watch adaptive slices (RunQueue.slice)
+    private final AtomicLong slices = new AtomicLong( );
+    private final AtomicLong quantumSum = new AtomicLong( );
+    private volatile long lastQuantum = 0;
+    private volatile long lastLoad = 0;
+    public static final int QUANTUM_STATS = 4; // longs getQuantumStats fills
 
     // New data added to p161 
-    private boolean[] tids; // Indicate which ids have been used
-    private static final int DEFAULT_MAX_THREADS = 10000;
+    // A thread ID is generation * maxThreads + slot. Free slots are kept in
+    // a FIFO ring, so allocating and returning an ID are O(1) and a slot is
+    // reused as late as possible; its generation is bumped on every return,
+    // so a stale ID never matches the thread that reuses the slot.
+    private TCB[] slots;     // the TCB holding each slot, or null
+    // the stats of the last thread to hold each slot and its tid, kept
+    // as a copy since a pooled thread's TCB is bound again (TCB.bind)
+    private long[][] exited;
+    private int[] exitedTids;
+    private int[] gens;      // current generation of each slot
+    private int[] freeSlots; // ring of free slot numbers
+    private int freeHead = 0;
+    private int freeCount = 0;
+    private int maxGen;      // generations wrap here so IDs stay positive
+    public static final int DEFAULT_MAX_THREADS = 10000;
 
     // A new feature added to p161 
-    // Allocate an ID array, each element indicating if that id has been used
-    private int nextId = 0;
+    // Allocate the slot tables, every slot free and in generation 0
     private void initTid( int maxThreads ) {
-        tids = new boolean[maxThreads];
+        slots = new TCB[maxThreads];
+        exited = new long[maxThreads][];
+        exitedTids = new int[maxThreads];
+        gens = new int[maxThreads];
+        freeSlots = new int[maxThreads];
         for ( int i = 0; i < maxThreads; i++ )
-            tids[i] = false;
+            freeSlots[i] = i;
+        freeHead = 0;
+        freeCount = maxThreads;
+        maxGen = Integer.MAX_VALUE / maxThreads;
     }
 
     // A new feature added to p161 
-    // Search an available thread ID and provide a new thread with this ID
-    private int getNewTid( ) {
-        for ( int i = 0; i < tids.length; i++ ) {
-            int tentative = ( nextId + i ) % tids.length;
-            if ( tids[tentative] == false ) {
-                tids[tentative] = true;
-                nextId = ( tentative + 1 ) % tids.length;
-                return tentative;
+    // Take the oldest free slot and provide a new thread with its ID
+    private synchronized int getNewTid( ) {
+        if ( freeCount == 0 )
+            return -1;
+        int slot = freeSlots[freeHead];
+        freeHead = ( freeHead + 1 ) % freeSlots.length;
+        freeCount--;
+        return gens[slot] * slots.length + slot;
+    }
+
+    // A new feature added to p161 
+    // Return the thread ID, retire its generation and free the slot
+    private synchronized boolean returnTid( int tid ) {
+        if ( tid < 0 )
+            return false;
+        int slot = tid % slots.length;
+        if ( gens[slot] != tid / slots.length )
+            return false; // stale or never allocated
+        if ( exited[slot] == null )
+            exited[slot] = new long[TCB.STATS];
+        slots[slot].getStats( exited[slot] );
+        exitedTids[slot] = tid;
+        slots[slot] = null;
+        gens[slot] = ( gens[slot] + 1 ) % maxGen;
+        freeSlots[( freeHead + freeCount ) % freeSlots.length] = slot;
+        freeCount++;
+        return true;
+    }
+
+    // The slot of a thread ID, always in [0, getMaxThreads( ))
+    public int slotOf( int tid ) {
+        return tid % slots.length;
+    }
+
+    // Retrieve the live TCB with this ID, or null if that thread is gone
+    public synchronized TCB getTcb( int tid ) {
+        if ( tid < 0 )
+            return null;
+        TCB tcb = slots[tid % slots.length];
+        return ( tcb != null && tcb.getTid( ) == tid ) ? tcb : null;
+    }
+
+    // Fill stats with the accounting of thread tid (-1: myself), which may
+    // have exited as long as its slot has not been reused
+    public boolean getStats( int tid, long[] stats ) {
+        if ( stats == null || stats.length < TCB.STATS )
+            return false;
+        TCB tcb;
+        if ( tid < 0 )
+            tcb = getMyTcb( );
+        else synchronized ( this ) {
+            tcb = getTcb( tid );
+            int slot = slotOf( tid );
+            if ( tcb == null && exited[slot] != null &&
+                 exitedTids[slot] == tid ) {
+                System.arraycopy( exited[slot], 0, stats, 0, TCB.STATS );
+                stats[TCB.STAT_NOW] = System.nanoTime( );
+                return true;
             }
         }
-        return -1;
+        if ( tcb == null )
+            return false;
+        tcb.getStats( stats );
+        return true;
     }
 
-    // A new feature added to p161 
-    // Return the thread ID and set the corresponding tids element to be unused
-    private boolean returnTid( int tid ) {
-        if ( tid >= 0 && tid < tids.length && tids[tid] == true ) {
-            tids[tid] = false;
-            return true;
+    // Fill tids with the IDs of live threads; returns how many there are
+    public synchronized int getTids( int[] tids ) {
+        int n = 0;
+        for ( int i = 0; i < slots.length; i++ ) {
+            if ( slots[i] != null ) {
+                if ( tids != null && n < tids.length )
+                    tids[n] = slots[i].getTid( );
+                n++;
+            }
         }
-        return false;
+        return n;
     }
 
     // A new feature added to p161 
-    // Retrieve the current thread's TCB from the queue
+    // Retrieve the current thread's TCB
     public TCB getMyTcb( ) {
-        Thread myThread = Thread.currentThread( ); // Get my thread object
-        synchronized( queue ) {
-            for ( int i = 0; i < queue.size( ); i++ ) {
-            TCB tcb = ( TCB )queue.elementAt( i );
-            Thread thread = tcb.getThread( );
-            if ( thread == myThread ) // if this is my TCB, return it
-                return tcb;
-            }
-        }
-        return null;
+        return tcbs.get( Thread.currentThread( ) );
     }
 
     // A new feature added to p161 
     // Return the maximal number of threads to be spawned in the system
     public int getMaxThreads( ) {
-        return tids.length;
+        return slots.length;
     }
 
     public Scheduler( ) {
-        timeSlice = DEFAULT_TIME_SLICE;
-        queue = new Vector( );
-        initTid( DEFAULT_MAX_THREADS );
+        this( DEFAULT_TIME_SLICE );
     }
 
     public Scheduler( int quantum ) {
-        timeSlice = quantum;
-        queue = new Vector( );
-        initTid( DEFAULT_MAX_THREADS );
+        this( quantum, DEFAULT_MAX_THREADS );
     }
 
     // A new feature added to p161 
     // A constructor to receive the max number of threads to be spawned
     public Scheduler( int quantum, int maxThreads ) {
+        this( quantum, maxThreads, new RoundRobinQueue( quantum ) );
+    }
+
+    // A constructor to receive the scheduling class selected at boot
+    public Scheduler( int quantum, int maxThreads, RunQueue runQueue ) {
+        this( quantum, maxThreads, new RunQueue[] { runQueue } );
+    }
+
+    // A constructor for several virtual CPUs, one run queue per CPU
+    public Scheduler( int quantum, int maxThreads, RunQueue[] runQueues ) {
         timeSlice = quantum;
-        queue = new Vector( );
+        tcbs = new ConcurrentHashMap<Thread,TCB>( );
+        cpus = new Cpu[runQueues.length];
+        for ( int i = 0; i < cpus.length; i++ )
+            cpus[i] = new Cpu( i, new DeadlineQueue( runQueues[i] ) );
         initTid( maxThreads );
     }
 
-    private void schedulerSleep( ) {
-        try {
-            Thread.sleep( timeSlice );
-        } catch ( InterruptedException e ) { }
+    public int getCpus( ) {
+        return cpus.length;
+    }
+
+    // false falls back to the priority-based dispatch ("dispatch=priority"),
+    // which virtual threads cannot use since they ignore priorities
+    public void setCpuGate( boolean gate ) {
+        cpuGate = gate;
+    }
+
+    public boolean getCpuGate( ) {
+        return cpuGate;
+    }
+
+    // Record one switch latency reported by the gate
+    public void recordSwitch( long nanos ) {
+        if ( nanos < 0 )
+            return;
+        switches.incrementAndGet( );
+        switchNanos.addAndGet( nanos );
+        long max;
+        while ( nanos > ( max = maxSwitchNanos.get( ) ) &&
+                !maxSwitchNanos.compareAndSet( max, nanos ) )
+            ;
+    }
+
+    // stats[0] = switches, stats[1] = total ns, stats[2] = max ns; false
+    // if stats is too short
+    public boolean getSwitchStats( long[] stats ) {
+        if ( stats == null || stats.length < SWITCH_STATS )
+            return false;
+        stats[0] = switches.get( );
+        stats[1] = switchNanos.get( );
+        stats[2] = maxSwitchNanos.get( );
+        return true;
+    }
+
+    private void recordQuantum( int quantum, int load ) {
+        slices.incrementAndGet( );
+        quantumSum.addAndGet( quantum );
+        lastQuantum = quantum;
+        lastLoad = load;
+    }
+
+    // stats[0] = slices, stats[1] = sum of their quanta in ms, stats[2] =
+    // the last quantum and stats[3] the threads on that CPU when it began;
+    // false if stats is too short
+    public boolean getQuantumStats( long[] stats ) {
+        if ( stats == null || stats.length < QUANTUM_STATS )
+            return false;
+        stats[0] = slices.get( );
+        stats[1] = quantumSum.get( );
+        stats[2] = lastQuantum;
+        stats[3] = lastLoad;
+        return true;
+    }
+
+    public static int getDefaultTimeSlice( ) {
+        return DEFAULT_TIME_SLICE;
+    }
+
+    private static boolean isBlocked( Thread t ) {
+        Thread.State state = t.getState( );
+        return state != Thread.State.RUNNABLE && state != Thread.State.NEW;
+    }
+
+    // Whether tcb's thread is blocked, asleep in the kernel or elsewhere,
+    // rather than runnable or parked at the CPU gate
+    private static boolean isStuck( TCB tcb ) {
+        Thread t = tcb.getThread( );
+        return t != null && !tcb.getTerminated( ) &&
+            ( tcb.isWaiting( ) || isBlocked( t ) && !tcb.isAtGate( ) );
     }
 
     // A modified addThread of p161 example
     public TCB addThread( Thread t ) {
+        return addThread( t, 0 );
+    }
+
+    // Spawn t with a CPU share weight, or its parent's weight if 0
+    public TCB addThread( Thread t, int weight ) {
+        return addThread( t, null, weight );
+    }
+
+    // Spawn the pooled thread of shell, binding shell to a new tid
+    // (see ProcessPool); the shell must have been reaped
+    public TCB addThread( TCB shell, int weight ) {
+        return addThread( shell.getThread( ), shell, weight );
+    }
+
+    private TCB addThread( Thread t, TCB shell, int weight ) {
         t.setPriority( 2 );
         TCB parentTcb = getMyTcb( ); // get my TCB and find my TID
         int pid = ( parentTcb != null ) ? parentTcb.getTid( ) : -1;
         int tid = getNewTid( ); // get a new TID
         if ( tid == -1)
             return null;
-        TCB tcb = new TCB( t, tid, pid ); // create a new TCB
-    
-        // the following if and for statements are for file system.
-        if ( parentTcb != null ) {
-            for ( int i = 0; i < 32; i++ ) {
-                tcb.ftEnt[i] = parentTcb.ftEnt[i];
-                // JFM added 2012-12-01
-                // increment the count for any file table entries inherited from parent
-                if ( tcb.ftEnt[i] != null )
-                    tcb.ftEnt[i].count++;
-            }
+        TCB tcb = shell;
+        if ( tcb == null )
+            tcb = new TCB( t, tid, pid ); // create a new TCB
+        else
+            tcb.bind( tid, pid );
+        if ( weight > 0 )
+            tcb.setWeight( weight );
+        else if ( parentTcb != null )
+            tcb.setWeight( parentTcb.getWeight( ) );
+        synchronized ( this ) {
+            slots[slotOf( tid )] = tcb;
         }
+        if ( parentTcb != null )
+            parentTcb.addChild( tid );
     
-        queue.add( tcb );
+        // the following if statement is for file system: the child shares
+        // its parent's fds until either one opens, closes or dups
+        if ( parentTcb != null )
+            tcb.inheritFds( parentTcb );
+    
+        tcbs.put( t, tcb );
+        placeCpu( tcb ).add( tcb );
         return tcb;
     }
 
@@ -122,64 +316,387 @@ public class Scheduler extends Thread
         if ( tcb == null )
             return false;
         else {
-            // JFM added 2012-12-01
-            // if any file table entries are still open, decrement their count
-            for ( int i = 3; i < 32; i++ )
-                if ( tcb.ftEnt[i] != null )
-                    // JFM changed 2012-12-13
-                    // close any open file descriptors rather than decrement the counts
-                    // to ensure that system-wide file table entries are removed
-                    // when no longer needed
-                    SysLib.close( i );
-            return tcb.setTerminated( );
+            tcb.setTerminated( );
+            signal( ); // let the scheduler reap this TCB
+            return true;
         }
     }
 
+    // Put the calling thread to sleep. It leaves its run queue at the end
+    // of its slice and costs no slices until the timer wheel puts it back.
     public void sleepThread( int milliseconds ) {
-        try {
-            sleep( milliseconds );
-        } catch ( InterruptedException e ) { }
+        final TCB tcb = getMyTcb( );
+        if ( tcb == null ) { // not a threadOS thread
+            try {
+                sleep( milliseconds );
+            } catch ( InterruptedException e ) { }
+            return;
+        }
+        if ( milliseconds <= 0 )
+            return;
+        tcb.startSleep( );
+        timers.schedule( new Runnable( ) {
+                public void run( ) {
+                    wakeThread( tcb );
+                }
+            }, milliseconds );
+        tcb.awaitWake( );
+    }
+
+    // Called by the timer wheel when a sleep expires
+    private void wakeThread( TCB tcb ) {
+        if ( tcb.wake( ) ) {
+            tcb.queued( System.nanoTime( ), true );
+            placeCpu( tcb ).add( tcb );
+        } else
+            signal( ); // its CPU may be about to count it as blocked
+    }
+
+    // Tell idle CPUs that a blocked thread may be runnable again
+    // (a disk interrupt, a wakeup, a thread exit).
+    public void signal( ) {
+        for ( int i = 0; i < cpus.length; i++ )
+            cpus[i].signal( );
+    }
+
+    // Pin the calling thread to a CPU, or let it run anywhere with -1.
+    // The thread moves there at the end of its current slice.
+    public boolean setAffinity( int cpu ) {
+        TCB tcb = getMyTcb( );
+        if ( tcb == null || cpu < -1 || cpu >= cpus.length || 
+             tcb.isRealTime( ) )
+            return false;
+        tcb.setAffinity( cpu );
+        return true;
+    }
+
+    // Set the calling thread's CPU share weight (see StrideQueue)
+    public boolean setWeight( int weight ) {
+        TCB tcb = getMyTcb( );
+        if ( tcb == null || weight <= 0 )
+            return false;
+        tcb.setWeight( weight );
+        return true;
+    }
+
+    // Make the calling thread a deadline thread with budget ms of CPU in
+    // every period ms, or a normal thread again with period 0. Admission
+    // control: the thread is placed on the CPU with the most room, and is
+    // rejected if no CPU it may run on can take it without going over
+    // RT_LIMIT. A deadline thread stays pinned to its CPU.
+    public synchronized boolean setDeadline( int period, int budget ) {
+        TCB tcb = getMyTcb( );
+        if ( tcb == null || period < 0 || 
+             period > 0 && ( budget <= 0 || budget > period ) )
+            return false;
+        int affinity = tcb.getAffinity( );
+        int load = ( period > 0 ) ? rtLoad( period, budget ) : 0;
+        int oldLoad = tcb.isRealTime( ) ? 
+            rtLoad( tcb.getPeriod( ), tcb.getBudget( ) ) : 0;
+        Cpu best = null;
+        for ( int i = 0; i < cpus.length && load > 0; i++ ) {
+            if ( affinity >= 0 && affinity != i )
+                continue;
+            int room = RT_LIMIT - cpus[i].rtLoad + 
+                ( i == affinity ? oldLoad : 0 );
+            if ( room >= load && 
+                 ( best == null || cpus[i].rtLoad < best.rtLoad ) )
+                best = cpus[i];
+        }
+        if ( load > 0 && best == null )
+            return false; // infeasible: keep the old parameters
+        if ( oldLoad > 0 )
+            cpus[affinity].rtLoad -= oldLoad;
+        if ( best != null ) {
+            best.rtLoad += load;
+            tcb.setAffinity( best.id ); // migrates at the end of the slice
+        }
+        tcb.setDeadline( period, budget );
+        return true;
+    }
+
+    // budget / period in parts per million
+    private static int rtLoad( int period, int budget ) {
+        return ( int )( budget * 1000000L / period );
+    }
+
+    // The calling deadline thread is done with its current job and sleeps
+    // until its next period
+    public boolean waitPeriod( ) {
+        TCB tcb = getMyTcb( );
+        if ( tcb == null || !tcb.isRealTime( ) )
+            return false;
+        long left = tcb.finishJob( );
+        if ( left > 0 )
+            sleepThread( ( int )left );
+        return true;
+    }
+
+    // Deadline misses of a thread, or -1 if there is no such thread
+    public int getMisses( int tid ) {
+        TCB tcb = ( tid < 0 ) ? getMyTcb( ) : getTcb( tid );
+        return ( tcb != null ) ? tcb.getMisses( ) : -1;
+    }
+
+    // The CPU a new thread starts on: its pinned CPU, or the least loaded
+    private Cpu placeCpu( TCB tcb ) {
+        int affinity = tcb.getAffinity( );
+        if ( affinity >= 0 && affinity < cpus.length )
+            return cpus[affinity];
+        int start;
+        synchronized ( this ) {
+            start = nextCpu;
+            nextCpu = ( nextCpu + 1 ) % cpus.length;
+        }
+        Cpu best = cpus[start];
+        for ( int i = 1; i < cpus.length; i++ ) {
+            Cpu cpu = cpus[( start + i ) % cpus.length];
+            if ( cpu.load( ) < best.load( ) )
+                best = cpu;
+        }
+        return best;
+    }
+
+    // Take a TCB allowed on thief from the busiest other CPU
+    private TCB steal( Cpu thief ) {
+        Cpu victim = null;
+        for ( int i = 0; i < cpus.length; i++ ) {
+            if ( cpus[i] != thief && cpus[i].runQueue.size( ) > 0 &&
+                 ( victim == null ||
+                   cpus[i].runQueue.size( ) > victim.runQueue.size( ) ) )
+                victim = cpus[i];
+        }
+        return ( victim != null ) ? victim.runQueue.steal( thief.id ) : null;
+    }
+
+    // Remove a terminated TCB and recycle its TID
+    private void reap( TCB tcb ) {
+        synchronized ( this ) {
+            if ( tcb.isRealTime( ) ) // give back its reservation
+                cpus[tcb.getAffinity( )].rtLoad 
+                    -= rtLoad( tcb.getPeriod( ), tcb.getBudget( ) );
+        }
+        tcbs.remove( tcb.getThread( ), tcb );
+        returnTid( tcb.getTid( ) );
+        tcb.reaped( ); // a pooled thread may bind its TCB again
     }
     
     // A modified run of p161
+    // The scheduler thread itself is CPU 0 and starts the other CPUs
     public void run( ) {
-        Thread current = null;
-    
         this.setPriority( 6 );
-        
-        while ( true ) {
+        timers.start( );
+        for ( int i = 1; i < cpus.length; i++ ) {
+            Thread t = new Thread( cpus[i], "cpu" + i );
+            t.setPriority( 6 );
+            t.start( );
+        }
+        cpus[0].run( );
+    }
+
+    // A virtual CPU: a dispatcher loop over its own run queue, which is
+    // also its monitor. An idle CPU steals work from the busiest other CPU.
+    private class Cpu implements Runnable {
+        final int id;
+        final DeadlineQueue runQueue; // deadline class over the normal one
+        int rtLoad = 0; // ppm reserved by deadline threads, under Scheduler
+
+        // Slices in a row that ended because the thread blocked. Once every
+        // queued thread has blocked, the CPU waits for signal( ).
+        private int blockedRounds = 0;
+        private volatile boolean busy = false;
+        // add( )s and signal( )s so far, under runQueue; one during a
+        // slice means the blocked wait after it must not wait
+        private long signals = 0;
+
+        Cpu( int id, DeadlineQueue runQueue ) {
+            this.id = id;
+            this.runQueue = runQueue;
+        }
+
+        // System.nanoTime( ) when the thread of the last slice was last
+        // seen running, which is what its slice is charged up to
+        private long ranUntil;
+
+        // Let current run for up to quantum milliseconds. Returns true if it
+        // used the whole quantum or a deadline thread took over, false if it
+        // blocked or finished before that. signal( ) cuts a poll short, so
+        // an exit is noticed right away.
+        private boolean schedulerSleep( TCB tcb, Thread current, int quantum ) {
+            long deadline = System.currentTimeMillis( ) + quantum;
+            ranUntil = System.nanoTime( );
+            if ( tcb.isWaiting( ) ) // still asleep in the kernel
+                return false;
             try {
-                // get the next TCB and its thrad
-                if ( queue.size( ) == 0 )
-                    continue;
-                TCB currentTCB = (TCB)queue.firstElement( );
-                if ( currentTCB.getTerminated( ) == true ) {
-                    queue.remove( currentTCB );
-                    returnTid( currentTCB.getTid( ) );
-                    continue;
-                }
-                current = currentTCB.getThread( );
-                if ( current != null ) {
-                    if ( current.isAlive( ) )
-                        current.setPriority( 4 );
-                    else {
-                        // Spawn must be controlled by Scheduler
-                        // Scheduler must start a new thread
-                        current.start( ); 
-                        current.setPriority( 4 );
+                for ( long left = quantum; left > 0;
+                      left = deadline - System.currentTimeMillis( ) ) {
+                    synchronized ( runQueue ) {
+                        // unless it exited or fell asleep before the wait
+                        if ( !tcb.getTerminated( ) && !tcb.isWaiting( ) )
+                            runQueue.wait( Math.min( left, BLOCK_POLL ) );
                     }
+                    if ( current == null || tcb.getTerminated( ) ||
+                         tcb.isWaiting( ) ||
+                         isBlocked( current ) && !tcb.isAtGate( ) )
+                        return false;
+                    ranUntil = System.nanoTime( );
+                    if ( runQueue.preempts( tcb ) )
+                        return true;
                 }
-                
-                schedulerSleep( );
-                // System.out.println("* * * Context Switch * * * ");
-                
-                synchronized ( queue ) {
-                    if ( current != null && current.isAlive( ) )
-                        current.setPriority( 2 );
-                    queue.remove( currentTCB ); // rotate this TCB to the end
-                    queue.add( currentTCB );
+            } catch ( InterruptedException e ) { }
+            ranUntil = System.nanoTime( );
+            return true;
+        }
+
+        // The first queued TCB whose thread is not blocked, under runQueue.
+        // A thread that blocked stays queued, and a slice would only find
+        // that out after a poll, so blocked threads are passed over and
+        // queued again. If every thread has blocked it is the first one
+        // after all, which ends its slice at once and lets run( ) count
+        // the blocked rounds and wait for a signal.
+        private TCB dequeueRunnable( ) {
+            TCB tcb = runQueue.dequeue( );
+            if ( tcb == null || !isStuck( tcb ) )
+                return tcb;
+            ArrayList<TCB> passed = new ArrayList<TCB>( );
+            do {
+                passed.add( tcb );
+                tcb = runQueue.dequeue( );
+            } while ( tcb != null && isStuck( tcb ) );
+            if ( tcb == null )
+                tcb = passed.remove( 0 );
+            for ( TCB blocked : passed )
+                runQueue.enqueue( blocked );
+            return tcb;
+        }
+
+        // queued threads plus the running one
+        int load( ) {
+            return runQueue.size( ) + ( busy ? 1 : 0 );
+        }
+
+        void add( TCB tcb ) {
+            synchronized ( runQueue ) {
+                runQueue.enqueue( tcb );
+                blockedRounds = 0;
+                signals++;
+                runQueue.notify( ); // wake up an idle CPU
+            }
+        }
+
+        void signal( ) {
+            synchronized ( runQueue ) {
+                blockedRounds = 0;
+                signals++;
+                runQueue.notify( );
+            }
+        }
+
+        // the next TCB to run here, stealing one if the queue is empty
+        private TCB next( ) throws InterruptedException {
+            while ( true ) {
+                synchronized ( runQueue ) {
+                    TCB tcb = dequeueRunnable( );
+                    if ( tcb != null )
+                        return tcb;
                 }
-            } catch ( NullPointerException e3 ) { };
+                TCB stolen = ( cpus.length > 1 ) ? steal( this ) : null;
+                if ( stolen != null )
+                    return stolen;
+                synchronized ( runQueue ) {
+                    long hold = runQueue.holdTime( );
+                    if ( runQueue.size( ) == 0 )
+                        // with other CPUs around, look for work to steal
+                        // now and then even if nobody signals
+                        runQueue.wait( cpus.length > 1 ? timeSlice : 0 );
+                    else if ( hold > 0 ) // only deadline threads, all held
+                        runQueue.wait( cpus.length > 1 ? 
+                                       Math.min( hold, timeSlice ) : hold );
+                }
+            }
+        }
+
+        public void run( ) {
+            Thread current = null;
+
+            while ( true ) {
+                try {
+                    // get the next TCB and its thrad, sleeping while there is none
+                    TCB currentTCB = next( );
+                    if ( currentTCB.getTerminated( ) == true ) {
+                        reap( currentTCB );
+                        continue;
+                    }
+                    busy = true;
+                    long signalsBefore;
+                    synchronized ( runQueue ) {
+                        signalsBefore = signals;
+                    }
+                    long start = System.nanoTime( );
+                    currentTCB.dispatched( start );
+                    current = currentTCB.getThread( );
+                    if ( current != null ) {
+                        if ( cpuGate )
+                            currentTCB.grantCpu( );
+                        else if ( current.getState( ) != Thread.State.NEW )
+                            current.setPriority( 4 );
+                        if ( current.getState( ) == Thread.State.NEW ) {
+                            // Spawn must be controlled by Scheduler
+                            // Scheduler must start a new thread
+                            current.start( ); 
+                            if ( !cpuGate )
+                                current.setPriority( 4 );
+                        }
+                    }
+
+                    int quantum = runQueue.quantum( currentTCB );
+                    recordQuantum( quantum, runQueue.size( ) + 1 );
+                    boolean preempted
+                        = schedulerSleep( currentTCB, current, quantum );
+                    // System.out.println("* * * Context Switch * * * ");
+
+                    busy = false;
+                    currentTCB.charge( ranUntil - start );
+                    currentTCB.queued( System.nanoTime( ), preempted );
+                    if ( cpuGate )
+                        currentTCB.revokeCpu( );
+                    else if ( current != null && current.isAlive( ) )
+                        current.setPriority( 2 );
+                    if ( currentTCB.getTerminated( ) == true ) {
+                        reap( currentTCB );
+                        continue;
+                    }
+
+                    // a sleeping thread waits off the queue for its timer
+                    if ( currentTCB.leaveQueue( ) )
+                        continue;
+
+                    // a thread pinned elsewhere migrates now
+                    int affinity = currentTCB.getAffinity( );
+                    if ( affinity >= 0 && affinity != id ) {
+                        cpus[affinity].add( currentTCB );
+                        continue;
+                    }
+
+                    synchronized ( runQueue ) {
+                        runQueue.requeue( currentTCB, preempted ); // to the end
+
+                        // everybody is blocked: wait for a signal instead of
+                        // cycling through threads that cannot run
+                        blockedRounds = preempted ? 0 : blockedRounds + 1;
+                        if ( signals != signalsBefore ) // a wakeup came in
+                            blockedRounds = 0;
+                        if ( blockedRounds >= runQueue.size( ) ) {
+                            long hold = runQueue.holdTime( );
+                            runQueue.wait( hold > 0 ? 
+                                           Math.min( hold, timeSlice ) :
+                                           timeSlice );
+                            blockedRounds = 0;
+                        }
+                    }
+                } catch ( InterruptedException e2 ) {
+                } catch ( NullPointerException e3 ) { };
+            }
         }
     }
 }
@@ -0,0 +1,83 @@
+//*****************************************************************************
+//**  File: ShareBench.java
+//**
+//**  Description: Proportional share test. Spawns one CPU-bound worker per
+//**    weight, each with SysLib.exec( args, weight ), lets them all compete
+//**    for the given number of seconds and compares the share of work each
+//**    one got with the share its weight asks for. Boot with sched=stride
+//**    or sched=lottery (and a short quantum, e.g. quantum=50, so that the
+//**    run covers many slices).
+//**
+//**    l ShareBench [seconds] [weight ...]
+//**      e.g. l ShareBench 10 70 20 10
+//*****************************************************************************
+
+public class ShareBench extends Thread {
+    private static final int CHUNK = 200000; // loop iterations per chunk
+    private static final int[] DEFAULT_WEIGHTS = { 70, 20, 10 };
+    private static final int MAX_WORKERS = 64;
+
+    // chunks done by each worker; every program shares the loader's classes
+    private static final long[] done = new long[MAX_WORKERS];
+
+    private int seconds = 10;
+    private int[] weights = DEFAULT_WEIGHTS;
+    private int worker = -1; // >= 0: run as that worker
+
+    public ShareBench( ) {
+    }
+
+    public ShareBench( String args[] ) {
+	if ( args[0].equals( "worker" ) ) {
+	    worker = Integer.parseInt( args[1] );
+	    seconds = Integer.parseInt( args[2] );
+	    return;
+	}
+	seconds = Integer.parseInt( args[0] );
+	if ( args.length > 1 ) {
+	    weights = new int[ Math.min( args.length - 1, MAX_WORKERS ) ];
+	    for ( int i = 0; i < weights.length; i++ )
+		weights[i] = Integer.parseInt( args[i + 1] );
+	}
+    }
+
+    public void run( ) {
+	if ( worker >= 0 ) {
+	    long end = System.currentTimeMillis( ) + seconds * 1000L;
+	    long x = 0;
+	    while ( System.currentTimeMillis( ) < end ) {
+		for ( int i = 0; i < CHUNK; i++ )
+		    x = x * 31 + i;
+		done[worker]++;
+		SysLib.safepoint( );
+	    }
+	    if ( x == 42 ) // keep the loop from being optimized away
+		SysLib.cout( "" );
+	    SysLib.exit( );
+	    return;
+	}
+
+	long totalWeight = 0;
+	for ( int i = 0; i < weights.length; i++ ) {
+	    done[i] = 0;
+	    totalWeight += weights[i];
+	}
+	for ( int i = 0; i < weights.length; i++ ) {
+	    String[] args = { "ShareBench", "worker", "" + i, "" + seconds };
+	    SysLib.exec( args, weights[i] );
+	}
+	for ( int i = 0; i < weights.length; i++ )
+	    SysLib.join( );
+
+	long total = 0;
+	for ( int i = 0; i < weights.length; i++ )
+	    total += done[i];
+	SysLib.cout( "weight  wanted  achieved  chunks\n" );
+	for ( int i = 0; i < weights.length; i++ )
+	    SysLib.cout( String.format( "%6d %6.1f%% %8.1f%% %7d\n", weights[i],
+					100.0 * weights[i] / totalWeight,
+					100.0 * done[i] / Math.max( total, 1 ),
+					done[i] ) );
+	SysLib.exit( );
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.*;
+
+// Stride scheduling: proportional CPU shares. Every thread has a pass
+// value, its virtual runtime (see TCB.charge), which grows by the time it
+// ran divided by its weight, and the thread with the smallest pass runs
+// next. Over time each thread gets CPU in proportion to its weight, e.g.
+// weights 70, 20 and 10 share the CPU 70/20/10.
+public class StrideQueue extends RunQueue
+{
+    // a queued TCB with the pass it was queued with; seq keeps equal
+    // passes in FIFO order
+    private static class Entry implements Comparable<Entry> {
+	final long pass;
+	final long seq;
+	final TCB tcb;
+
+	Entry( long pass, long seq, TCB tcb ) {
+	    this.pass = pass;
+	    this.seq = seq;
+	    this.tcb = tcb;
+	}
+
+	public int compareTo( Entry other ) {
+	    if ( pass != other.pass )
+		return ( pass < other.pass ) ? -1 : 1;
+	    return ( seq < other.seq ) ? -1 : ( seq > other.seq ) ? 1 : 0;
+	}
+    }
+
+    private TreeSet<Entry> queue = new TreeSet<Entry>( );
+    private long seq = 0;
+    private long globalPass = 0; // pass of the last thread dispatched
+
+    public StrideQueue( int timeSlice ) {
+	super( timeSlice );
+    }
+
+    // New, migrating and requeued threads keep their own pass, but never
+    // less than the current global pass, so a thread that slept or blocked
+    // for a while neither starves the others nor gets starved by them.
+    // The Scheduler passes over blocked threads when it dispatches, so
+    // a blocked thread at the front is not given slices it cannot use.
+    public synchronized void enqueue( TCB tcb ) {
+	if ( tcb.getVruntime( ) < globalPass )
+	    tcb.setVruntime( globalPass );
+	queue.add( new Entry( tcb.getVruntime( ), seq++, tcb ) );
+    }
+
+    public synchronized TCB dequeue( ) {
+	Entry first = queue.pollFirst( );
+	if ( first == null )
+	    return null;
+	globalPass = Math.max( globalPass, first.pass );
+	return first.tcb;
+    }
+
+    // the thread furthest ahead, which would wait longest here
+    public synchronized TCB steal( int cpu ) {
+	Iterator<Entry> it = queue.descendingIterator( );
+	while ( it.hasNext( ) ) {
+	    Entry entry = it.next( );
+	    if ( runsOn( entry.tcb, cpu ) ) {
+		it.remove( );
+		return entry.tcb;
+	    }
+	}
+	return null;
+    }
+
+    public synchronized int size( ) {
+	return queue.size( );
+    }
+}
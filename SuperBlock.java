@@ -9,6 +9,7 @@
 //------------------------------------------------------------------------------
 import java.lang.Exception;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SuperBlock
 {
@@ -20,6 +21,11 @@ public class SuperBlock
 	public int freeList;    // the block number of the free list's head
 	public int lastFreeBlock;
 
+	private int[] logged = new int[4]; // the fields as sync last logged them
+
+	// Guards the fields, across the reads and writes of free list blocks
+	private final ReentrantLock lock = new ReentrantLock();
+
 //------------------------------------------------------------------------------
 // Default Constructor
 //------------------------------------------------------------------------------
@@ -33,6 +39,12 @@ public class SuperBlock
 		totalInodes = SysLib.bytes2int(superBlock, 4);
 		freeList = SysLib.bytes2int(superBlock, 8);
 		lastFreeBlock = SysLib.bytes2int(superBlock, 12);
+
+		// That is what the disk has already.
+		logged[0] = totalBlocks;
+		logged[1] = totalInodes;
+		logged[2] = freeList;
+		logged[3] = lastFreeBlock;
 	}
 
 //------------------------------------------------------------------------------
@@ -60,16 +72,47 @@ public class SuperBlock
 //------------------------------------------------------------------------------
 	public void sync()
 	{
-		byte[] buffer = new byte[Disk.blockSize];
+		lock.lock();
+		try
+		{
+			byte[] buffer = new byte[Disk.blockSize];
+
+			// Write the totalBlocks, totalInodes, and freeList.
+			SysLib.int2bytes(totalBlocks, buffer, 0);
+			SysLib.int2bytes(totalInodes, buffer, 4);
+			SysLib.int2bytes(freeList, buffer, 8);
+			SysLib.int2bytes(lastFreeBlock, buffer, 12);
 
-		// Write the totalBlocks, totalInodes, and freeList.
-		SysLib.int2bytes(totalBlocks, buffer, 0);
-		SysLib.int2bytes(totalInodes, buffer, 4);
-		SysLib.int2bytes(freeList, buffer, 8);
-		SysLib.int2bytes(lastFreeBlock, buffer, 12);
+			// Log the block into the metadata journal.
+			Kernel.metawrite(0, buffer);
 
-		// Write the block back to disk.
-		SysLib.rawwrite(0, buffer);
+			logged[0] = totalBlocks;
+			logged[1] = totalInodes;
+			logged[2] = freeList;
+			logged[3] = lastFreeBlock;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+//------------------------------------------------------------------------------
+// Syncs the SuperBlock only if it changed since the last sync.
+//------------------------------------------------------------------------------
+	public void syncIfChanged()
+	{
+		lock.lock();
+		try
+		{
+			if(logged[0] != totalBlocks || logged[1] != totalInodes ||
+				logged[2] != freeList || logged[3] != lastFreeBlock)
+				sync();
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 //------------------------------------------------------------------------------
@@ -77,30 +120,39 @@ public class SuperBlock
 //------------------------------------------------------------------------------
 	public int getFreeBlock()
 	{
-		// Store the current free block temporarily.
-		int currentFreeBlock = freeList;
-
-		if(currentFreeBlock != NULL_PTR)
+		lock.lock();
+		try
 		{
-			byte[] buffer = new byte[Disk.blockSize];
+			// Store the current free block temporarily.
+			int currentFreeBlock = freeList;
 
-			// Read the current free block into the buffer.
-			SysLib.rawread(currentFreeBlock, buffer);
+			if(currentFreeBlock != NULL_PTR)
+			{
+				byte[] buffer = new byte[Disk.blockSize];
 
-			// Update the pointer to the next free block.
-			freeList = SysLib.bytes2short(buffer, 0);
+				// Read the current free block into the buffer.
+				SysLib.rawread(currentFreeBlock, buffer);
 
-			if(freeList == NULL_PTR)
-				lastFreeBlock = NULL_PTR;
+				// Update the pointer to the next free block.
+				freeList = SysLib.bytes2short(buffer, 0);
 
-			// Update the current free block's pointer.
-			SysLib.short2bytes(NULL_PTR, buffer, 0);
+				if(freeList == NULL_PTR)
+					lastFreeBlock = NULL_PTR;
 
-			// Write the current free block back to the disk.
-			SysLib.rawwrite(currentFreeBlock, buffer);
-		}
+				// Update the current free block's pointer.
+				SysLib.short2bytes(NULL_PTR, buffer, 0);
 
-		return currentFreeBlock;
+				// Write the current free block back to the disk. The block now
+				// belongs to a file, so this is a plain data write.
+				SysLib.rawwrite(currentFreeBlock, buffer);
+			}
+
+			return currentFreeBlock;
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 //------------------------------------------------------------------------------
@@ -108,33 +160,41 @@ public class SuperBlock
 //------------------------------------------------------------------------------
 	public void returnBlock(short blockNumber)
 	{
-		int firstFreeBlock = DEFAULT_INODE_BLOCKS / 
-			(Disk.blockSize / Inode.iNodeSize) + 1;
-
-		if(blockNumber >= firstFreeBlock && blockNumber < totalBlocks)
+		lock.lock();
+		try
 		{
-			byte[] buffer = new byte[Disk.blockSize];
+			int firstFreeBlock = DEFAULT_INODE_BLOCKS / 
+				(Disk.blockSize / Inode.iNodeSize) + 1;
 
-			// Read the current last free block into the buffer.
-			SysLib.rawread(lastFreeBlock, buffer);
+			if(blockNumber >= firstFreeBlock && blockNumber < totalBlocks)
+			{
+				byte[] buffer = new byte[Disk.blockSize];
 
-			// Update the current last free block's pointer.
-			SysLib.short2bytes(blockNumber, buffer, 0);
+				// Read the current last free block into the buffer.
+				SysLib.rawread(lastFreeBlock, buffer);
 
-			// Write the current last free block back to disk.
-			SysLib.rawwrite(lastFreeBlock, buffer);
+				// Update the current last free block's pointer.
+				SysLib.short2bytes(blockNumber, buffer, 0);
 
-			// Update the SuperBlock's pointer.
-			lastFreeBlock = blockNumber;
+				// Log the current last free block into the journal.
+				Kernel.metawrite(lastFreeBlock, buffer);
 
-			// Read the new last free block into the buffer.
-			SysLib.rawread(lastFreeBlock, buffer);
+				// Update the SuperBlock's pointer.
+				lastFreeBlock = blockNumber;
 
-			// Update the new last free block's pointer.
-			SysLib.short2bytes(NULL_PTR, buffer, 0);
+				// Read the new last free block into the buffer.
+				SysLib.rawread(lastFreeBlock, buffer);
 
-			// Write the new last free block back to disk.
-			SysLib.rawwrite(lastFreeBlock, buffer);
+				// Update the new last free block's pointer.
+				SysLib.short2bytes(NULL_PTR, buffer, 0);
+
+				// Log the new last free block into the journal.
+				Kernel.metawrite(lastFreeBlock, buffer);
+			}
+		}
+		finally
+		{
+			lock.unlock();
 		}
 	}
 }
@@ -0,0 +1,88 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Wait queue indexed by condition number. The Kernel uses one for threads
+// waiting on the disk. wakeup leaves its value behind even if
+// nobody is sleeping yet, and a sleep takes one value in FIFO order.
+//
+// A condition only has state while a thread sleeps on it or a value is
+// left in it, so memory follows the waiters, not the number of
+// conditions. That state is a LinkedTransferQueue, a lock-free dual queue:
+// sleepers park (LockSupport) in FIFO order, and a wakeup hands its value
+// to the first of them without taking a lock, or leaves it queued.
+public class SyncQueue {
+    private static final int RETIRED = Integer.MIN_VALUE;
+
+    // One condition in use. users counts the threads holding it plus the
+    // values left in it; at zero it is retired and dropped from the table,
+    // and the next user makes a new one.
+    private static class Condition {
+	final LinkedTransferQueue<Integer> values =
+	    new LinkedTransferQueue<Integer>( );
+	final AtomicInteger users = new AtomicInteger( 0 );
+    }
+
+    private final ConcurrentHashMap<Integer,Condition> conditions =
+	new ConcurrentHashMap<Integer,Condition>( );
+    private final int condMax;
+    private final int COND_MAX = 10;
+
+    public SyncQueue( ) {
+	condMax = COND_MAX;
+    }
+
+    public SyncQueue( int condMax ) {
+	this.condMax = condMax;
+    }
+
+    // Sleep on a condition; returns the value passed to its wakeup
+    int enqueueAndSleep( int condition ) {
+	if ( condition < 0 || condition >= condMax )
+	    return -1;
+	Condition c = acquire( condition );
+	int value;
+	while ( true ) {
+	    try {
+		value = c.values.take( );
+		break;
+	    } catch ( InterruptedException e ) { }
+	}
+	release( condition, c, 2 ); // this thread and the value it took
+	return value;
+    }
+
+    // Wake up one thread sleeping on a condition, passing it tid
+    void dequeueAndWakeup( int condition, int tid ) {
+	if ( condition >= 0 && condition < condMax )
+	    acquire( condition ).values.offer( tid ); // the value keeps the use
+    }
+
+    void dequeueAndWakeup( int condition ) {
+	dequeueAndWakeup( condition, 0 );
+    }
+
+    // The state of a condition, with one more user
+    private Condition acquire( int condition ) {
+	Integer key = condition;
+	while ( true ) {
+	    Condition c = conditions.get( key );
+	    if ( c == null ) {
+		Condition fresh = new Condition( );
+		c = conditions.putIfAbsent( key, fresh );
+		if ( c == null )
+		    c = fresh;
+	    }
+	    for ( int u = c.users.get( ); u != RETIRED; u = c.users.get( ) )
+		if ( c.users.compareAndSet( u, u + 1 ) )
+		    return c;
+	    conditions.remove( key, c ); // retired meanwhile: drop it, retry
+	}
+    }
+
+    private void release( int condition, Condition c, int uses ) {
+	if ( c.users.addAndGet( -uses ) == 0 &&
+	     c.users.compareAndSet( 0, RETIRED ) )
+	    conditions.remove( condition, c );
+    }
+}
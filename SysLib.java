@@ -3,6 +3,8 @@ import java.util.*;
 public class SysLib {
 
     //NEW METHODS
+	// open, read, write, seek, close and fsize call their typed Kernel
+	// entry points directly instead of Kernel.interrupt
 
 	public static int format(int files)
 	{
@@ -11,29 +13,58 @@ public class SysLib {
 
 	public static int open(String fileName, String mode)
 	{
-		String[] args = {fileName, mode};
-		return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.OPEN, 0, args);
+		return Kernel.open(fileName, FileTableEntry.parseMode(mode));
 	}
 
 	public static int read(int fd, byte[] buffer)
 	{
-		return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READ, fd, buffer);
+		return Kernel.read(fd, buffer);
 	}
 
 	public static int write(int fd, byte[] buffer)
 	{
-		return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.WRITE, fd, buffer);
+		return Kernel.write(fd, buffer);
 	}
 
 	public static int seek(int fd, int offset, int whence)
 	{
-		int[] args = {offset, whence};
-		return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SEEK, fd, args);
+		return Kernel.seek(fd, offset, whence);
 	}
 
 	public static int close(int fd)
 	{
-		return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.CLOSE, fd, null);
+		return Kernel.close(fd);
+	}
+
+	// Run the operations queued on ring in one call (see IoRing); returns
+	// how many were run
+	public static int submit(IoRing ring)
+	{
+		return Kernel.submit(ring);
+	}
+
+	// Asynchronous versions of read, write and rawread: each returns at
+	// once with a handle to poll, wait on (aiowait) or attach a callback to
+	// (see AsyncIo). The buffer and the fd must be left alone until then.
+	public static AsyncIo readAsync(int fd, byte[] buffer)
+	{
+		return Kernel.readAsync(fd, buffer);
+	}
+
+	public static AsyncIo writeAsync(int fd, byte[] buffer)
+	{
+		return Kernel.writeAsync(fd, buffer);
+	}
+
+	public static AsyncIo rawreadAsync(int blkNumber, byte[] buffer)
+	{
+		return Kernel.rawreadAsync(blkNumber, buffer);
+	}
+
+	// Wait for io to complete; returns its result
+	public static int aiowait(AsyncIo io)
+	{
+		return Kernel.aioWait(io);
 	}
 
 	public static int delete(String fileName)
@@ -43,7 +74,29 @@ public class SysLib {
 
 	public static int fsize(int fd)
 	{
-		return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SIZE, fd, null);
+		return Kernel.fsize(fd);
+	}
+
+	// Advisory lock on length bytes of fd from offset (0: the rest of the
+	// file) with a RangeLock mode: SHARED or EXCLUSIVE, or UNLOCK to
+	// release; add NOWAIT to get -1 at once instead of waiting for a
+	// conflicting lock. Released at close.
+	public static int lock(int fd, int offset, int length, int mode)
+	{
+		return Kernel.lock(fd, offset, length, mode);
+	}
+
+	// A new fd for the file open at fd, sharing its seek pointer and
+	// mode: the lowest one free, or newfd for dup2, which closes what
+	// newfd had open first. Returns the new fd, or -1.
+	public static int dup(int fd)
+	{
+		return Kernel.dup(fd);
+	}
+
+	public static int dup2(int fd, int newfd)
+	{
+		return Kernel.dup2(fd, newfd);
 	}
 
     //PREVIOUSLY EXISTING METHODS
@@ -53,14 +106,48 @@ public class SysLib {
 				 Kernel.EXEC, 0, args );
     }
 
+    // exec with a CPU share weight for the stride and lottery schedulers;
+    // plain exec( ) gives the child its parent's weight
+    public static int exec( String args[], int weight ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.EXEC, weight, args );
+    }
+
     public static int join( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.WAIT, 0, null );
     }
 
+    // Wait for child tid to exit; returns tid, or -1 if it is not my child
+    // or has already been waited for
+    public static int waitpid( int tid ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.WAITPID, tid, null );
+    }
+
+    // The tid of a child that has exited, without waiting: Kernel.RUNNING
+    // if none has yet, -1 if I have no children left
+    public static int waitany( ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.WAITANY, 0, null );
+    }
+
+    // Wait for all my children to exit and put their tids into tids, in
+    // exit order; returns how many, or -1 if tids is null. Any beyond
+    // tids.length are left for later calls.
+    public static int joinAll( int tids[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.JOINALL, 0, tids );
+    }
+
     public static int boot( ) {
+	return boot( null );
+    }
+
+    // args are boot options such as "sched=mlfq" or "quantum=500"
+    public static int boot( String args[] ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
-				 Kernel.BOOT, 0, null );
+				 Kernel.BOOT, 0, args );
     }
 
     public static int exit( ) {
@@ -103,6 +190,78 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // Run only on the given virtual CPU from the next slice on; -1 for any
+    public static int setaffinity( int cpu ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.AFFINITY, cpu, null );
+    }
+
+    // Set my weight (default 100) under sched=stride or sched=lottery
+    public static int setweight( int weight ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.WEIGHT, weight, null );
+    }
+
+    // Ask for budget ms of CPU in every period ms, ahead of all normal
+    // threads. Returns ERROR if the deadline threads already admitted
+    // leave no room for it. period 0 makes me a normal thread again.
+    public static int setdeadline( int period, int budget ) {
+        int[] args = { period, budget };
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DEADLINE, 0, args );
+    }
+
+    // A deadline thread is done with this period's job and sleeps until
+    // the next period begins; a job not done by then counts as a miss
+    public static int waitperiod( ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.WAITPERIOD, 0, null );
+    }
+
+    // The number of deadlines thread tid (-1: myself) has missed
+    public static int deadlinemisses( int tid ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.MISSES, tid, null );
+    }
+
+    // The scheduler's accounting of thread tid (-1: myself), also after it
+    // exited: stats must hold TCB.STATS longs laid out as the TCB.STAT_
+    // constants say (System.nanoTime( ) stamps and durations in ns)
+    public static int getstats( int tid, long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.GETSTATS, tid, stats );
+    }
+
+    // Fill tids with the IDs of all live threads and return their number,
+    // which may be larger than tids.length; a null tids only counts them
+    public static int threads( int[] tids ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.THREADS, 0, tids );
+    }
+
+    // stats[0] = slices handed out so far, stats[1] = the sum of their
+    // quanta in ms, stats[2] = the latest quantum in ms and stats[3] = the
+    // number of threads sharing that CPU when it was handed out; -1 if
+    // stats is null or shorter than that
+    public static int quantumstats( long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.QUANTUMSTAT, 0, stats );
+    }
+
+    // stats[0] = context switches, stats[1] = total and stats[2] = maximum
+    // latency in nanoseconds from the scheduler's grant to resumption;
+    // -1 if stats is null or shorter than that
+    public static int switchstats( long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SWITCHSTAT, 0, stats );
+    }
+
+    // Give the scheduler a chance to switch threads during long stretches
+    // of computation without system calls
+    public static void safepoint( ) {
+	Kernel.safepoint( );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -0,0 +1,77 @@
+//*****************************************************************************
+//**  File: SyscallBench.java
+//**
+//**  Description: Measures the latency of a file system call (SysLib.fsize,
+//**    which looks up the caller's TCB and one of its file descriptors)
+//**    while more and more idle threads are alive in threadOS. With an
+//**    O(1) TCB lookup the latency should stay flat as the count grows.
+//**
+//**    l SyscallBench [calls] [threads ...]
+//**      e.g. l SyscallBench 100000 0 250 1000 4000
+//*****************************************************************************
+
+public class SyscallBench extends Thread {
+    private static final int DEFAULT_CALLS = 100000;
+    private static final int[] DEFAULT_THREADS = { 0, 250, 1000, 4000 };
+
+    private int calls = DEFAULT_CALLS;
+    private int[] threads = DEFAULT_THREADS;
+    private int idleMillis = -1; // >= 0: run as an idle child
+
+    public SyscallBench( ) {
+    }
+
+    public SyscallBench( String args[] ) {
+	if ( args[0].equals( "idle" ) ) {
+	    idleMillis = Integer.parseInt( args[1] );
+	    return;
+	}
+	calls = Integer.parseInt( args[0] );
+	if ( args.length > 1 ) {
+	    threads = new int[ args.length - 1 ];
+	    for ( int i = 1; i < args.length; i++ )
+		threads[i - 1] = Integer.parseInt( args[i] );
+	}
+    }
+
+    public void run( ) {
+	if ( idleMillis >= 0 ) {
+	    SysLib.sleep( idleMillis );
+	    SysLib.exit( );
+	    return;
+	}
+
+	int fd = SysLib.open( "bench", "w+" );
+	if ( fd < 0 ) {
+	    SysLib.cout( "SyscallBench: cannot open bench (format first?)\n" );
+	    SysLib.exit( );
+	    return;
+	}
+
+	SysLib.cout( "threads   ns/call\n" );
+	int alive = 0;
+	for ( int t = 0; t < threads.length; t++ ) {
+	    // keep every child alive until all measurements are done
+	    for ( ; alive < threads[t]; alive++ ) {
+		String[] args = { "SyscallBench", "idle", "60000" };
+		if ( SysLib.exec( args ) < 0 ) {
+		    SysLib.cout( "SyscallBench: exec failed at " + alive + "\n" );
+		    break;
+		}
+	    }
+	    SysLib.sleep( 500 ); // let the children start
+
+	    for ( int i = 0; i < calls / 10; i++ ) // warm up
+		SysLib.fsize( fd );
+	    long start = System.nanoTime( );
+	    for ( int i = 0; i < calls; i++ )
+		SysLib.fsize( fd );
+	    long elapsed = System.nanoTime( ) - start;
+
+	    SysLib.cout( String.format( "%7d %9d\n", alive, elapsed / calls ) );
+	}
+	SysLib.close( fd );
+	SysLib.cout( "SyscallBench: done; children exit on their own\n" );
+	SysLib.exit( );
+    }
+}
@@ -1,27 +1,129 @@
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
 public class TCB {
-	public final static int FILE_TABLE_ENTRIES = 32;
+	private static volatile boolean banner = true; // "banner=off" at boot
+	public final static int DEFAULT_WEIGHT = 100; // CPU share weight
+	public final static int MAX_WEIGHT = 10000;
+
+	// Layout of the array filled by getStats( ) (see SysLib.getstats);
+	// times are System.nanoTime( ) values or durations in nanoseconds
+	public final static int STAT_PID = 0;
+	public final static int STAT_SUBMIT = 1;     // spawned
+	public final static int STAT_FIRST_RUN = 2;  // first dispatch, or 0
+	public final static int STAT_RUN = 3;        // total time on a CPU
+	public final static int STAT_WAIT = 4;       // total time runnable in a queue
+	public final static int STAT_EXIT = 5;       // completion, or 0
+	public final static int STAT_DISPATCHES = 6;
+	public final static int STAT_NOW = 7;        // when the stats were taken
+	public final static int STATS = 8;
 
     private Thread thread = null;
     private int tid = 0;
     private int pid = 0;
     private boolean terminated = false;
     private int sleepTime = 0;
-    public FileTableEntry[] ftEnt = null; // added for the file system
+    private int level = 0;      // run queue level, used by MlfqQueue
+    private long levelTime = 0; // when level was last set, in ms
+    private int affinity = -1;  // the only CPU to run on, or -1 for any
+    private int weight = DEFAULT_WEIGHT; // share, used by StrideQueue etc.
+    private long runtime = 0;   // nanoseconds spent on a CPU
+    private long vruntime = 0;  // runtime scaled by DEFAULT_WEIGHT / weight
+
+    // Accounting, in System.nanoTime( ) terms
+    private long submitTime;
+    private long firstRunTime = 0;
+    private long readyTime;       // queued runnable since, or 0
+    private long waitTime = 0;
+    private long exitTime = 0;
+    private long dispatches = 0;
+
+    // Deadline class (see DeadlineQueue): a job of up to budget ms of CPU
+    // in every period ms, due at the end of the period
+    private int period = 0;       // 0: not a deadline thread
+    private int budget = 0;
+    private long deadline = 0;    // end of the current period, in ms
+    private long budgetLeft = 0;  // nanoseconds left in this period
+    private boolean jobDone = false; // waiting for the next period
+    private int misses = 0;       // periods that ended before the job did
+
+    // CPU gate: a thread only enters or leaves the kernel, or passes a
+    // safepoint, while the scheduler has granted it the CPU.
+    private volatile boolean onCpu = false;
+    private volatile boolean atGate = false; // parked waiting for the CPU
+    private volatile long grantTime = 0;     // System.nanoTime( ) of grant
+    private int kernelDepth = 0; // nesting of Kernel.interrupt calls
+
+    // SLEEP: a sleeping thread is taken off its run queue (offQueue) at
+    // the end of its slice and put back by the Scheduler's timer wheel
+    private boolean sleeping = false;
+    private boolean offQueue = false;
+    private volatile boolean waiting = false; // asleep on a kernel SyncQueue
+    private volatile boolean started = false; // dispatched at least once
+    private volatile boolean reaped = false;  // tid given back (see bind)
+    private FdTable fds = new FdTable( ); // added for the file system
+
+    // Children, for SysLib.join, waitpid, waitany and joinAll: the tids of
+    // those still running, and of those that exited and have not been
+    // waited for yet, in exit order
+    private final HashSet<Integer> children = new HashSet<Integer>( );
+    private final LinkedHashSet<Integer> exitedChildren =
+	new LinkedHashSet<Integer>( );
+    private volatile boolean childEvent = false; // a child exited
+    public final static int CHILD_RUNNING = -2; // see reapChild( )
 
     public TCB( Thread newThread, int myTid, int parentTid ) {
 	thread = newThread;
+	bind( myTid, parentTid );
+    }
+
+    // A shell for a pooled thread (see ProcessPool), bound to a tid later
+    public TCB( Thread newThread ) {
+	thread = newThread;
+	reaped = true;
+    }
+
+    // Give this TCB a new tid and parent, with the state of a TCB just
+    // built. A pooled thread's TCB is bound again for every program it
+    // runs, once the Scheduler has reaped it (see awaitReaped).
+    public void bind( int myTid, int parentTid ) {
+	synchronized ( this ) {
+	    reset( myTid, parentTid );
+	}
+	if ( banner )
+	    System.err.println( "threadOS: a new thread (thread=" + thread + 
+				" tid=" + tid + 
+				" pid=" + pid + ")");
+    }
+
+    private void reset( int myTid, int parentTid ) {
 	tid = myTid;
 	pid = parentTid;
 	terminated = false;
+	sleepTime = 0;
+	level = 0;
+	levelTime = 0;
+	affinity = -1;
+	weight = DEFAULT_WEIGHT;
+	runtime = vruntime = 0;
+	submitTime = readyTime = System.nanoTime( );
+	firstRunTime = waitTime = exitTime = dispatches = 0;
+	period = budget = misses = 0;
+	deadline = budgetLeft = 0;
+	jobDone = false;
+	onCpu = atGate = false;
+	kernelDepth = 0;
+	sleeping = offQueue = waiting = false;
+	started = reaped = false;
+	fds = new FdTable( );
+	children.clear( );
+	exitedChildren.clear( );
+	childEvent = false;
+    }
 
-	ftEnt = new FileTableEntry[FILE_TABLE_ENTRIES];    // added for the file system
-
-	for(int i = 0; i < FILE_TABLE_ENTRIES; i++)
-		ftEnt[i] = null;
-
-	System.err.println( "threadOS: a new thread (thread=" + thread + 
-			    " tid=" + tid + 
-			    " pid=" + pid + ")");
+    // Whether every new TCB announces itself on System.err
+    public static void setBanner( boolean on ) {
+	banner = on;
     }
 
     public synchronized Thread getThread( ) {
@@ -37,6 +139,8 @@ public class TCB {
     }
 
     public synchronized boolean setTerminated( ) {
+	if ( !terminated )
+	    exitTime = System.nanoTime( );
 	terminated = true;
 	return terminated;
     }
@@ -45,35 +149,356 @@ public class TCB {
 	return terminated;
     }
 
-    // added for the file system
-    public synchronized int getFd( FileTableEntry entry ) {
-	if ( entry == null )
+    // Called by the Scheduler to dispatch this thread
+    public void grantCpu( ) {
+	grantTime = System.nanoTime( );
+	onCpu = true;
+	LockSupport.unpark( thread );
+    }
+
+    // Called by the Scheduler at the end of this thread's slice
+    public void revokeCpu( ) {
+	onCpu = false;
+    }
+
+    // Whether this thread is parked at the gate rather than blocked on
+    // something else (the Scheduler must not end its slice for that)
+    public boolean isAtGate( ) {
+	return atGate;
+    }
+
+    // The following three are called by this thread itself. Each returns
+    // the switch latency in nanoseconds (grant to resumption) if the thread
+    // had to wait for the CPU, or -1 if it did not.
+
+    // on entry to the kernel
+    public long enterKernel( ) {
+	return ( kernelDepth++ == 0 ) ? awaitCpu( ) : -1;
+    }
+
+    // on its way back to user code
+    public long exitKernel( ) {
+	return ( --kernelDepth == 0 && !getTerminated( ) ) ? awaitCpu( ) : -1;
+    }
+
+    // at a safepoint in user code
+    public long safepoint( ) {
+	return ( kernelDepth == 0 ) ? awaitCpu( ) : -1;
+    }
+
+    private long awaitCpu( ) {
+	if ( onCpu )
 	    return -1;
-	for ( int i = 3; i < 32; i++ ) {
-	    if ( ftEnt[i] == null ) {
-		ftEnt[i] = entry;
-		return i;
+	atGate = true;
+	while ( !onCpu )
+	    LockSupport.park( this );
+	atGate = false;
+	return System.nanoTime( ) - grantTime;
+    }
+
+    // Set by the kernel around a SyncQueue sleep, so the Scheduler can end
+    // the slice at once instead of polling the thread's state
+    public void setWaiting( boolean on ) {
+	waiting = on;
+    }
+
+    public boolean isWaiting( ) {
+	return waiting;
+    }
+
+    // Called by this thread before it arms its wakeup timer
+    public synchronized void startSleep( ) {
+	sleeping = true;
+	offQueue = false;
+    }
+
+    // Called by this thread to wait until wake( ). It parks rather than
+    // waits on the monitor, which would pin a virtual thread's carrier.
+    public void awaitWake( ) {
+	while ( isSleeping( ) )
+	    LockSupport.park( this );
+    }
+
+    private synchronized boolean isSleeping( ) {
+	return sleeping;
+    }
+
+    // Called by the Scheduler at the end of a slice: true if the thread is
+    // asleep and now off the run queue, false if it must be queued again
+    public synchronized boolean leaveQueue( ) {
+	if ( sleeping )
+	    offQueue = true;
+	return sleeping;
+    }
+
+    // Called when the sleep expires; true if the thread had left the run
+    // queue and must be put back on one
+    public boolean wake( ) {
+	boolean requeue;
+	synchronized ( this ) {
+	    requeue = offQueue;
+	    sleeping = offQueue = false;
+	}
+	LockSupport.unpark( thread );
+	return requeue;
+    }
+
+    // Called by the Scheduler when this thread spawns child
+    public synchronized void addChild( int child ) {
+	children.add( child );
+    }
+
+    // Called by an exiting child of this thread
+    public void childExited( int child ) {
+	synchronized ( this ) {
+	    if ( !children.remove( child ) )
+		return;
+	    exitedChildren.add( child );
+	}
+	childEvent = true;
+	LockSupport.unpark( thread );
+    }
+
+    // Take the exited child child, or the first child to exit if child is
+    // -1, and return its tid. Returns CHILD_RUNNING if it has not exited
+    // yet (for -1: none has, but some are running), or -1 if there is no
+    // such child.
+    public synchronized int reapChild( int child ) {
+	if ( child == -1 ) {
+	    Iterator<Integer> first = exitedChildren.iterator( );
+	    if ( first.hasNext( ) ) {
+		child = first.next( );
+		first.remove( );
+		return child;
 	    }
+	    return children.isEmpty( ) ? -1 : CHILD_RUNNING;
 	}
-	return -1;
+	if ( exitedChildren.remove( child ) )
+	    return child;
+	return children.contains( child ) ? CHILD_RUNNING : -1;
     }
 
-    // added for the file system
-    public synchronized FileTableEntry returnFd( int fd ) {
-	if ( fd >= 3 && fd < 32 ) {
-	    FileTableEntry oldEnt = ftEnt[fd];
-	    ftEnt[fd] = null;
-	    return oldEnt;
+    // Take up to tids.length exited children into tids, in exit order;
+    // returns how many, or CHILD_RUNNING if some children are still running
+    public synchronized int reapChildren( int[] tids ) {
+	if ( !children.isEmpty( ) )
+	    return CHILD_RUNNING;
+	int n = 0;
+	for ( Iterator<Integer> i = exitedChildren.iterator( );
+	      i.hasNext( ) && n < tids.length; n++ ) {
+	    tids[n] = i.next( );
+	    i.remove( );
+	}
+	return n;
+    }
+
+    // Called by this thread to park until a child exits (or spuriously)
+    public void awaitChild( ) {
+	while ( !childEvent )
+	    LockSupport.park( this );
+	childEvent = false;
+    }
+
+    public synchronized int getAffinity( ) {
+	return affinity;
+    }
+
+    public synchronized void setAffinity( int cpu ) {
+	affinity = cpu;
+    }
+
+    public synchronized int getWeight( ) {
+	return weight;
+    }
+
+    // Weights are clamped to [1, MAX_WEIGHT]
+    public synchronized void setWeight( int newWeight ) {
+	weight = Math.max( 1, Math.min( newWeight, MAX_WEIGHT ) );
+    }
+
+    // Called by the Scheduler after each slice with the time it ran. The
+    // virtual runtime advances more slowly the heavier the thread is.
+    public synchronized void charge( long nanos ) {
+	runtime += nanos;
+	vruntime += nanos * DEFAULT_WEIGHT / weight;
+	if ( period > 0 )
+	    budgetLeft -= nanos;
+    }
+
+    // Called by the Scheduler when it dispatches this thread at now
+    public void dispatched( long now ) {
+	synchronized ( this ) {
+	    if ( firstRunTime == 0 )
+		firstRunTime = now;
+	    if ( readyTime != 0 )
+		waitTime += now - readyTime;
+	    readyTime = 0;
+	    dispatches++;
+	}
+	if ( !started ) {
+	    started = true;
+	    LockSupport.unpark( thread );
 	}
-	else
-	    return null;
+    }
+
+    // Called by a thread that was started before its TCB was queued (a
+    // pooled one) to wait for its first dispatch, which the CPU gate
+    // does not cover under dispatch=priority
+    public void awaitStart( ) {
+	while ( !started )
+	    LockSupport.park( this );
+    }
+
+    // Called by the Scheduler once it has removed this TCB and taken
+    // back its tid
+    public void reaped( ) {
+	reaped = true;
+	LockSupport.unpark( thread );
+    }
+
+    // Called by a pooled thread after its program exits, so its TCB is
+    // not bound again while the Scheduler may still reap it
+    public void awaitReaped( ) {
+	while ( !reaped )
+	    LockSupport.park( this );
+    }
+
+    // Called by the Scheduler when it queues this thread again at now.
+    // After a slice that ended because the thread blocked, the time until
+    // the next dispatch counts as blocked rather than waiting.
+    public synchronized void queued( long now, boolean preempted ) {
+	readyTime = preempted ? now : 0;
+    }
+
+    // Fill stats[0 .. STATS - 1] as laid out by the STAT_ constants
+    public synchronized void getStats( long[] stats ) {
+	long now = System.nanoTime( );
+	stats[STAT_PID] = pid;
+	stats[STAT_SUBMIT] = submitTime;
+	stats[STAT_FIRST_RUN] = firstRunTime;
+	stats[STAT_RUN] = runtime;
+	stats[STAT_WAIT] = waitTime + ( readyTime != 0 ? now - readyTime : 0 );
+	stats[STAT_EXIT] = exitTime;
+	stats[STAT_DISPATCHES] = dispatches;
+	stats[STAT_NOW] = now;
+    }
+
+    public synchronized long getRuntime( ) {
+	return runtime;
+    }
+
+    public synchronized long getVruntime( ) {
+	return vruntime;
+    }
+
+    public synchronized void setVruntime( long newVruntime ) {
+	vruntime = newVruntime;
+    }
+
+    // Make this a deadline thread whose first period starts now, or a
+    // normal thread again with period 0
+    public synchronized void setDeadline( int newPeriod, int newBudget ) {
+	period = newPeriod;
+	budget = newBudget;
+	deadline = System.currentTimeMillis( ) + period;
+	budgetLeft = budget * 1000000L;
+	jobDone = false;
+    }
+
+    public synchronized boolean isRealTime( ) {
+	return period > 0;
+    }
+
+    public synchronized int getPeriod( ) {
+	return period;
+    }
+
+    public synchronized int getBudget( ) {
+	return budget;
+    }
+
+    public synchronized long getDeadline( ) {
+	return deadline;
+    }
+
+    // Start the next period if the current one is over, counting a miss
+    // for every deadline that passed with the job unfinished
+    public synchronized void refresh( long now ) {
+	if ( period == 0 || now < deadline )
+	    return;
+	long passed = ( now - deadline ) / period + 1;
+	misses += jobDone ? passed - 1 : passed;
+	deadline += passed * period;
+	budgetLeft = budget * 1000000L;
+	jobDone = false;
+    }
+
+    // Whether the deadline class may run this thread now: it has a job
+    // and budget left for it
+    public synchronized boolean isEligible( long now ) {
+	refresh( now );
+	return period > 0 && !jobDone && budgetLeft > 0;
+    }
+
+    public synchronized long getBudgetLeft( ) {
+	return budgetLeft;
+    }
+
+    // The current job is done; returns the ms until the next period
+    public synchronized long finishJob( ) {
+	refresh( System.currentTimeMillis( ) );
+	jobDone = true;
+	return deadline - System.currentTimeMillis( );
+    }
+
+    public synchronized int getMisses( ) {
+	refresh( System.currentTimeMillis( ) );
+	return misses;
+    }
+
+    public synchronized int getLevel( ) {
+	return level;
+    }
+
+    public synchronized void setLevel( int newLevel ) {
+	level = newLevel;
+	levelTime = System.currentTimeMillis( );
+    }
+
+    public synchronized long getLevelTime( ) {
+	return levelTime;
+    }
+
+    // added for the file system
+    // Called by the Scheduler before this thread starts: share parent's
+    // fds, copy-on-write (see FdTable)
+    public void inheritFds( TCB parent ) {
+	fds = new FdTable( parent.fds );
+    }
+
+    // added for the file system
+    public int getFd( FileTableEntry entry ) {
+	return fds.add( entry );
+    }
+
+    // added for the file system
+    public FileTableEntry returnFd( int fd ) {
+	return fds.remove( fd );
     }
 
     // added for the file systme
-    public synchronized FileTableEntry getFtEnt( int fd ) {
-	if ( fd >= 3 && fd < 32 )
-	    return ftEnt[fd];
-	else
-	    return null;
+    public FileTableEntry getFtEnt( int fd ) {
+	return fds.get( fd );
+    }
+
+    // Put entry at fd (see FdTable.isValid) and return the entry it replaces
+    public FileTableEntry setFd( int fd, FileTableEntry entry ) {
+	return fds.set( fd, entry );
+    }
+
+    // Called by this thread as it exits: the entries it must close, which
+    // are none while another thread still shares its fds
+    public FileTableEntry[] releaseFds( ) {
+	return fds.release( );
     }
 }
@@ -0,0 +1,90 @@
+import java.util.*;
+
+// A hashed timing wheel. Timers hash into one of the wheel's slots by
+// their expiry tick; a slot holds every timer due in that slot on any turn
+// of the wheel, each with the number of turns it still has to wait. Adding
+// a timer is O(1) and every tick only looks at one slot. The wheel's
+// thread sleeps while no timer is pending.
+public class TimerWheel extends Thread
+{
+    public static final int DEFAULT_TICK = 10;   // ms
+    public static final int DEFAULT_SLOTS = 512; // one turn = 5.12 s
+
+    private static class Timer {
+	long rounds; // turns of the wheel left before it expires
+	final Runnable task;
+
+	Timer( long rounds, Runnable task ) {
+	    this.rounds = rounds;
+	    this.task = task;
+	}
+    }
+
+    private final int tick;
+    private final ArrayList<Timer>[] slots;
+    private int cursor = 0;   // the slot of the current tick
+    private int pending = 0;  // timers in the wheel
+    private long nextTick;    // System.currentTimeMillis( ) of the next tick
+
+    public TimerWheel( ) {
+	this( DEFAULT_TICK, DEFAULT_SLOTS );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public TimerWheel( int tick, int numSlots ) {
+	super( "timers" );
+	this.tick = Math.max( tick, 1 );
+	slots = ( ArrayList<Timer>[] )new ArrayList<?>[ Math.max( numSlots, 1 ) ];
+	for ( int i = 0; i < slots.length; i++ )
+	    slots[i] = new ArrayList<Timer>( );
+	setDaemon( true );
+    }
+
+    // Run task on the wheel's thread at the first tick at least delay ms
+    // from now
+    public synchronized void schedule( Runnable task, long delay ) {
+	long now = System.currentTimeMillis( );
+	if ( pending++ == 0 ) {
+	    // the wheel stood still; restart it from now
+	    nextTick = now + tick;
+	    notify( );
+	}
+	// the next tick may be less than a tick away, so count from it
+	long ticks = Math.max( ( now + delay - nextTick + tick - 1 ) / tick,
+			       0 ) + 1;
+	int slot = ( int )( ( cursor + ticks ) % slots.length );
+	slots[slot].add( new Timer( ( ticks - 1 ) / slots.length, task ) );
+    }
+
+    public void run( ) {
+	ArrayList<Runnable> expired = new ArrayList<Runnable>( );
+	while ( true ) {
+	    try {
+		synchronized ( this ) {
+		    while ( pending == 0 )
+			wait( );
+		    long now;
+		    while ( ( now = System.currentTimeMillis( ) ) < nextTick )
+			wait( nextTick - now );
+		    // catch up on every tick that has passed
+		    while ( nextTick <= now ) {
+			cursor = ( cursor + 1 ) % slots.length;
+			nextTick += tick;
+			Iterator<Timer> it = slots[cursor].iterator( );
+			while ( it.hasNext( ) ) {
+			    Timer timer = it.next( );
+			    if ( timer.rounds-- == 0 ) {
+				it.remove( );
+				pending--;
+				expired.add( timer.task );
+			    }
+			}
+		    }
+		}
+		for ( Runnable task : expired ) // outside the wheel's lock
+		    task.run( );
+		expired.clear( );
+	    } catch ( InterruptedException e ) { }
+	}
+    }
+}